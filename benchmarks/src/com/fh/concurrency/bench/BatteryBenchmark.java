@@ -0,0 +1,56 @@
+package com.fh.concurrency.bench;
+
+import com.fh.concurrency.Battery;
+import com.fh.concurrency.EMSExecutor;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+// Battery.useEnergy / charge contention on a single storage unit from 1 to 64 threads.
+// The mixed operation alternates a draw and a charge so the battery never runs dry.
+public class BatteryBenchmark implements Benchmark {
+    private EMSExecutor executor;
+    private Battery battery;
+    private String operation;
+    private final long[] counter = new long[1024];
+
+    @Override
+    public String name() {
+        return "battery";
+    }
+
+    @Override
+    public Map<String, List<String>> parameters() {
+        return Map.of(
+                "op", List.of("use", "mixed"),
+                "executor", List.of("PLATFORM", "VIRTUAL"));
+    }
+
+    @Override
+    public List<Integer> threadCounts() {
+        return List.of(1, 2, 4, 8, 16, 32, 64);
+    }
+
+    @Override
+    public void setup(Map<String, String> params, Path workDir) throws Exception {
+        operation = params.get("op");
+        executor = new EMSExecutor(EMSExecutor.Mode.valueOf(params.get("executor")), Runtime.getRuntime().availableProcessors());
+        battery = new Battery(1_000_000_000.0, 1024, executor);
+        battery.charge(1_000_000_000.0, "Bench").join();
+    }
+
+    @Override
+    public void run(int thread) throws Exception {
+        if ("use".equals(operation) || (counter[thread]++ & 1) == 0) {
+            battery.useEnergy(0.001).join();
+        } else {
+            battery.charge(0.001, "Bench").join();
+        }
+    }
+
+    @Override
+    public void teardown() {
+        executor.close();
+    }
+}
@@ -0,0 +1,27 @@
+package com.fh.concurrency.bench;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+// One benchmarked operation. The runner calls setup once per parameter combination and thread
+// count, then calls run concurrently from the given number of threads and times every call.
+public interface Benchmark {
+
+    String name();
+
+    // Parameter name -> values to run with by default (overridable with -p name=v1,v2)
+    Map<String, List<String>> parameters();
+
+    // Thread counts to run with by default (overridable with -t)
+    List<Integer> threadCounts();
+
+    // Prepare state; workDir is an empty directory that is also used as user.home
+    void setup(Map<String, String> params, Path workDir) throws Exception;
+
+    // One operation; thread is the index of the calling benchmark thread
+    void run(int thread) throws Exception;
+
+    default void teardown() throws Exception {
+    }
+}
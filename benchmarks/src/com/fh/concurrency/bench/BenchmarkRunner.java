@@ -0,0 +1,206 @@
+package com.fh.concurrency.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+// Runs the benchmark suite and prints throughput and latency percentiles per benchmark,
+// parameter combination and thread count.
+//
+// Usage: BenchmarkRunner [name-filter] [-wi <warmup iterations>] [-i <iterations>]
+//                        [-r <seconds per iteration>] [-t <threads,...>] [-p <name>=<v1,v2,...>]...
+//
+// Every run gets a fresh work directory that is also set as user.home, because the system
+// resolves its log directories from there.
+public class BenchmarkRunner {
+
+    private static final List<Benchmark> BENCHMARKS = List.of(
+            new SearchBenchmark(),
+            new EnergyDataBenchmark(),
+            new BatteryBenchmark(),
+            new FleetBenchmark(),
+            new MetadataBenchmark());
+
+    private final PrintStream report = System.out;
+    private String filter = "";
+    private int warmupIterations = 2;
+    private int iterations = 5;
+    private long iterationMillis = 1000;
+    private List<Integer> threadOverride;
+    private final Map<String, List<String>> paramOverrides = new HashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkRunner runner = new BenchmarkRunner();
+        runner.parseArguments(args);
+        runner.runAll();
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-wi":
+                    warmupIterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-i":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-r":
+                    iterationMillis = (long) (Double.parseDouble(args[++i]) * 1000);
+                    break;
+                case "-t":
+                    threadOverride = new ArrayList<>();
+                    for (String threads : args[++i].split(",")) {
+                        threadOverride.add(Integer.parseInt(threads.trim()));
+                    }
+                    break;
+                case "-p":
+                    String[] param = args[++i].split("=", 2);
+                    paramOverrides.put(param[0], Arrays.asList(param[1].split(",")));
+                    break;
+                default:
+                    filter = args[i];
+            }
+        }
+    }
+
+    private void runAll() throws Exception {
+        report.printf("%-14s %-48s %7s %14s %10s %10s %10s %10s %10s%n",
+                "Benchmark", "Params", "Threads", "ops/s", "avg us", "p50 us", "p99 us", "p99.9 us", "max us");
+        for (Benchmark benchmark : BENCHMARKS) {
+            if (!benchmark.name().contains(filter)) {
+                continue;
+            }
+            List<Integer> threadCounts = threadOverride != null ? threadOverride : benchmark.threadCounts();
+            for (Map<String, String> params : combinations(benchmark.parameters())) {
+                for (int threads : threadCounts) {
+                    runOne(benchmark, params, threads);
+                }
+            }
+        }
+    }
+
+    private void runOne(Benchmark benchmark, Map<String, String> params, int threads) throws Exception {
+        Path workDir = Files.createTempDirectory("ems-bench-");
+        String originalHome = System.getProperty("user.home");
+        PrintStream originalOut = System.out;
+        System.setProperty("user.home", workDir.toString());
+        // The system reports every operation on the console; keep that out of the measurements
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            benchmark.setup(params, workDir);
+            LatencyRecorder latencies = new LatencyRecorder();
+            double[] throughput = new double[iterations];
+            try {
+                for (int i = 0; i < warmupIterations; i++) {
+                    runIteration(benchmark, threads);
+                }
+                for (int i = 0; i < iterations; i++) {
+                    LatencyRecorder iteration = runIteration(benchmark, threads);
+                    throughput[i] = iteration.count() * 1000.0 / iterationMillis;
+                    latencies.add(iteration);
+                }
+            } finally {
+                benchmark.teardown();
+            }
+            report(benchmark, params, threads, throughput, latencies);
+        } finally {
+            System.setOut(originalOut);
+            System.setProperty("user.home", originalHome);
+            deleteRecursively(workDir);
+        }
+    }
+
+    // Run the operation from all threads until the iteration time is up
+    private LatencyRecorder runIteration(Benchmark benchmark, int threads) throws Exception {
+        LatencyRecorder[] recorders = new LatencyRecorder[threads];
+        Exception[] failures = new Exception[threads];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        long[] deadline = new long[1];
+
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            recorders[t] = new LatencyRecorder();
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    LatencyRecorder recorder = recorders[thread];
+                    long now = System.nanoTime();
+                    while (now < deadline[0]) {
+                        benchmark.run(thread);
+                        long end = System.nanoTime();
+                        recorder.record(end - now);
+                        now = end;
+                    }
+                } catch (Exception e) {
+                    failures[thread] = e;
+                }
+            }, "bench-" + t);
+            workers[t].start();
+        }
+        deadline[0] = System.nanoTime() + iterationMillis * 1_000_000;
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (Exception failure : failures) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        LatencyRecorder merged = new LatencyRecorder();
+        for (LatencyRecorder recorder : recorders) {
+            merged.add(recorder);
+        }
+        return merged;
+    }
+
+    private void report(Benchmark benchmark, Map<String, String> params, int threads, double[] throughput, LatencyRecorder latencies) {
+        double mean = Arrays.stream(throughput).average().orElse(0);
+        double deviation = Math.sqrt(Arrays.stream(throughput).map(x -> (x - mean) * (x - mean)).average().orElse(0));
+        report.printf("%-14s %-48s %7d %14s %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                benchmark.name(), params.toString(), threads,
+                String.format("%.0f+-%.0f", mean, deviation),
+                latencies.mean() / 1000.0,
+                latencies.percentile(50) / 1000.0,
+                latencies.percentile(99) / 1000.0,
+                latencies.percentile(99.9) / 1000.0,
+                latencies.max() / 1000.0);
+    }
+
+    // Cartesian product of the parameter values, after applying -p overrides
+    private List<Map<String, String>> combinations(Map<String, List<String>> parameters) {
+        List<Map<String, String>> result = new ArrayList<>();
+        result.add(new TreeMap<>());
+        for (Map.Entry<String, List<String>> parameter : new TreeMap<>(parameters).entrySet()) {
+            List<String> values = paramOverrides.getOrDefault(parameter.getKey(), parameter.getValue());
+            List<Map<String, String>> expanded = new ArrayList<>();
+            for (Map<String, String> partial : result) {
+                for (String value : values) {
+                    Map<String, String> combination = new TreeMap<>(partial);
+                    combination.put(parameter.getKey(), value.trim());
+                    expanded.add(combination);
+                }
+            }
+            result = expanded;
+        }
+        return result;
+    }
+
+    private static void deleteRecursively(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    System.err.println("Could not delete " + path + ": " + e.getMessage());
+                }
+            });
+        }
+    }
+}
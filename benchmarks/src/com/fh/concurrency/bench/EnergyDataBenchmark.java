@@ -0,0 +1,93 @@
+package com.fh.concurrency.bench;
+
+import com.fh.concurrency.EnergyDataExchange;
+import com.fh.concurrency.EnergyDataWriter;
+import com.fh.concurrency.Metadata;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// EnergyDataExchange.logEnergyData (synchronous), logEnergyDataAsync (waiting for durability),
+// retrieveEnergyData and a time-range read of 1% of the readings, in text or binary storage.
+// Each thread writes its own equipment unless equipment=shared.
+public class EnergyDataBenchmark implements Benchmark {
+    private static final int RETRIEVE_LINES = 10_000;
+    private static final long FIRST_TIMESTAMP = 1_730_419_200_000L; // 2024-11-01T00:00:00Z
+
+    private Metadata metadata;
+    private EnergyDataExchange exchange;
+    private String operation;
+    private boolean shared;
+    private final long[] sequence = new long[1024];
+
+    @Override
+    public String name() {
+        return "energy-data";
+    }
+
+    @Override
+    public Map<String, List<String>> parameters() {
+        return Map.of(
+                "op", List.of("log", "logAsync", "retrieve", "range"),
+                "format", List.of("TEXT", "BINARY"),
+                "fsync", List.of("NONE", "PER_BATCH"),
+                "equipment", List.of("perThread", "shared"));
+    }
+
+    @Override
+    public List<Integer> threadCounts() {
+        return List.of(1, 4, 16);
+    }
+
+    @Override
+    public void setup(Map<String, String> params, Path workDir) throws Exception {
+        operation = params.get("op");
+        shared = "shared".equals(params.get("equipment"));
+        metadata = new Metadata(workDir.resolve("metadata.log").toString(), Metadata.OverflowPolicy.DROP, Metadata.DEFAULT_CAPACITY);
+        EnergyDataWriter writer = new EnergyDataWriter("logs", metadata, EnergyDataWriter.FsyncPolicy.valueOf(params.get("fsync")));
+        exchange = new EnergyDataExchange("logs", metadata, writer, EnergyDataExchange.StorageFormat.valueOf(params.get("format")));
+
+        if ("retrieve".equals(operation) || "range".equals(operation)) {
+            for (int thread = 0; thread < 64; thread++) {
+                for (int line = 0; line < RETRIEVE_LINES; line++) {
+                    exchange.logEnergyDataAsync(equipment(thread), (FIRST_TIMESTAMP + line * 1000L) + " " + (40 + line % 10) / 2.0);
+                }
+            }
+            exchange.logEnergyDataAsync(equipment(0), FIRST_TIMESTAMP + " 0").join();
+        }
+    }
+
+    @Override
+    public void run(int thread) throws Exception {
+        String equipment = equipment(thread);
+        switch (operation) {
+            case "log":
+                exchange.logEnergyData(equipment, sequence[thread]++ + " 42.5");
+                break;
+            case "logAsync":
+                exchange.logEnergyDataAsync(equipment, sequence[thread]++ + " 42.5").join();
+                break;
+            case "retrieve":
+                exchange.retrieveEnergyData(equipment);
+                break;
+            default:
+                Instant from = Instant.ofEpochMilli(FIRST_TIMESTAMP + RETRIEVE_LINES / 2 * 1000L);
+                try (Stream<String> readings = exchange.streamEnergyData(equipment, from, from.plusSeconds(RETRIEVE_LINES / 100), Long.MAX_VALUE)) {
+                    readings.count();
+                }
+        }
+    }
+
+    private String equipment(int thread) {
+        return shared ? "WindTurbine" : "WindTurbine" + thread;
+    }
+
+    @Override
+    public void teardown() {
+        exchange.close();
+        metadata.close();
+    }
+}
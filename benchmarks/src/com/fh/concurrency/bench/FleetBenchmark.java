@@ -0,0 +1,43 @@
+package com.fh.concurrency.bench;
+
+import com.fh.concurrency.BatteryFleet;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+// BatteryFleet.dispatch throughput by number of units and dispatch policy
+public class FleetBenchmark implements Benchmark {
+    private BatteryFleet fleet;
+
+    @Override
+    public String name() {
+        return "fleet";
+    }
+
+    @Override
+    public Map<String, List<String>> parameters() {
+        return Map.of(
+                "units", List.of("1", "8", "32"),
+                "policy", List.of("MOST_CHARGED", "ROUND_ROBIN", "LEAST_LOADED"));
+    }
+
+    @Override
+    public List<Integer> threadCounts() {
+        return List.of(1, 4, 16, 64);
+    }
+
+    @Override
+    public void setup(Map<String, String> params, Path workDir) {
+        int units = Integer.parseInt(params.get("units"));
+        fleet = BatteryFleet.of(units, 1_000_000_000.0, 1024, BatteryFleet.DispatchPolicy.valueOf(params.get("policy")));
+        for (int i = 0; i < units; i++) {
+            fleet.getUnit(i).charge(1_000_000_000.0, "Bench").join();
+        }
+    }
+
+    @Override
+    public void run(int thread) {
+        fleet.dispatch(0.001);
+    }
+}
@@ -0,0 +1,74 @@
+package com.fh.concurrency.bench;
+
+// Log-linear latency histogram for one benchmark thread: every power of two is split into
+// 16 sub-buckets, which keeps the relative error of a percentile under about 6%.
+class LatencyRecorder {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[64 * SUB_BUCKETS];
+    private long total;
+    private long sum;
+    private long max;
+
+    void record(long nanos) {
+        long value = Math.max(1, nanos);
+        counts[bucketOf(value)]++;
+        total++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    void add(LatencyRecorder other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    long count() {
+        return total;
+    }
+
+    double mean() {
+        return total == 0 ? 0 : (double) sum / total;
+    }
+
+    long max() {
+        return max;
+    }
+
+    // Upper bound of the bucket holding the given percentile (0-100)
+    long percentile(double percentile) {
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return Math.min(max, upperBoundOf(i));
+            }
+        }
+        return max;
+    }
+
+    private static int bucketOf(long value) {
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude < SUB_BUCKET_BITS) {
+            return (int) value;
+        }
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        long lower = (1L << magnitude) | (subBucket << (magnitude - SUB_BUCKET_BITS));
+        return lower + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,51 @@
+package com.fh.concurrency.bench;
+
+import com.fh.concurrency.Metadata;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+// Cost of Metadata.logOperation / logSearch for the caller, with the blocking and dropping overflow policies
+public class MetadataBenchmark implements Benchmark {
+    private Metadata metadata;
+    private boolean search;
+
+    @Override
+    public String name() {
+        return "metadata";
+    }
+
+    @Override
+    public Map<String, List<String>> parameters() {
+        return Map.of(
+                "policy", List.of("BLOCK", "DROP"),
+                "entry", List.of("operation", "search"));
+    }
+
+    @Override
+    public List<Integer> threadCounts() {
+        return List.of(1, 4, 16);
+    }
+
+    @Override
+    public void setup(Map<String, String> params, Path workDir) {
+        search = "search".equals(params.get("entry"));
+        metadata = new Metadata(workDir.resolve("metadata.log").toString(),
+                Metadata.OverflowPolicy.valueOf(params.get("policy")), Metadata.DEFAULT_CAPACITY);
+    }
+
+    @Override
+    public void run(int thread) {
+        if (search) {
+            metadata.logSearch("WindTurbine", "searched by equipment");
+        } else {
+            metadata.logOperation("WindTurbine.log", "Log energy data");
+        }
+    }
+
+    @Override
+    public void teardown() {
+        metadata.close();
+    }
+}
@@ -0,0 +1,109 @@
+package com.fh.concurrency.bench;
+
+import com.fh.concurrency.LogIndex;
+import com.fh.concurrency.LogLayout;
+import com.fh.concurrency.LogSearcher;
+import com.fh.concurrency.Metadata;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+// LogSearcher.searchByDate / searchByEquipment over a generated directory of log files,
+// with and without the log index. criteria=batch runs searchBatch with five dates and all five
+// equipment names per operation. layout=partitioned places the files in equipment/date
+// partitions (see LogLayout). Use -p files=100000,1000000 for the large directories.
+public class SearchBenchmark implements Benchmark {
+    static final String[] EQUIPMENT = {"SolarPanel", "WindTurbine", "HydroGenerator", "BatteryStorage", "SolarInverter"};
+    private static final int DAYS = 365;
+
+    private Metadata metadata;
+    private LogIndex index;
+    private LogSearcher searcher;
+    private String criteria;
+    private String[] dates;
+    private final int[] next = new int[1024];
+
+    @Override
+    public String name() {
+        return "search";
+    }
+
+    @Override
+    public Map<String, List<String>> parameters() {
+        return Map.of(
+                "files", List.of("1000", "10000"),
+                "criteria", List.of("date", "equipment", "batch"),
+                "index", List.of("off", "on"),
+                "layout", List.of("flat", "partitioned"));
+    }
+
+    @Override
+    public List<Integer> threadCounts() {
+        return List.of(1, 4);
+    }
+
+    @Override
+    public void setup(Map<String, String> params, Path workDir) throws Exception {
+        int files = Integer.parseInt(params.get("files"));
+        criteria = params.get("criteria");
+        System.setProperty(LogLayout.LAYOUT_PROPERTY, params.get("layout"));
+        LogLayout layout = LogLayout.of("logs");
+        Files.createDirectories(layout.getRoot());
+
+        LocalDate firstDay = LocalDate.of(2024, 1, 1);
+        dates = new String[DAYS];
+        for (int day = 0; day < DAYS; day++) {
+            dates[day] = firstDay.plusDays(day).toString();
+        }
+        IntStream.range(0, files).parallel().forEach(i -> {
+            String name = EQUIPMENT[i % EQUIPMENT.length] + "_" + dates[i % DAYS] + "_" + i + ".log";
+            try {
+                Path file = layout.resolve(name);
+                Files.createDirectories(file.getParent());
+                Files.writeString(file, dates[i % DAYS] + " reading " + i + "\n");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        metadata = new Metadata(workDir.resolve("metadata.log").toString(), Metadata.OverflowPolicy.DROP, Metadata.DEFAULT_CAPACITY);
+        if ("on".equals(params.get("index"))) {
+            index = new LogIndex("logs");
+            index.start();
+        }
+        searcher = new LogSearcher("logs", metadata, "", index);
+    }
+
+    @Override
+    public void run(int thread) throws Exception {
+        int n = next[thread]++;
+        if ("date".equals(criteria)) {
+            searcher.searchByDate(dates[n % DAYS]);
+        } else if ("batch".equals(criteria)) {
+            List<String> batch = new ArrayList<>(List.of(EQUIPMENT));
+            for (int i = 0; i < 5; i++) {
+                batch.add(dates[(n + i) % DAYS]);
+            }
+            searcher.searchBatch(batch);
+        } else {
+            searcher.searchByEquipment(EQUIPMENT[n % EQUIPMENT.length]);
+        }
+    }
+
+    @Override
+    public void teardown() {
+        if (index != null) {
+            index.close();
+            index = null;
+        }
+        metadata.close();
+        System.clearProperty(LogLayout.LAYOUT_PROPERTY);
+    }
+}
@@ -0,0 +1,6 @@
+/**
+ * Benchmarks for the HA_Concurrency module
+ */
+module HA_Concurrency.benchmarks {
+    requires HA_Concurrency;
+}
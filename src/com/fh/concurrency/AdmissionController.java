@@ -0,0 +1,144 @@
+package com.fh.concurrency;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Admission control for a battery's usage slots. A request takes a free slot at once; otherwise it
+// waits in a bounded queue until a released slot is handed to it or its deadline passes. Waiting
+// requests are served by priority, and first come first served within a priority. When the queue
+// is full, a new request displaces the newest waiting request of a lower priority, or is turned
+// down if there is none, so overload sheds deferrable load before critical load.
+class AdmissionController {
+    private final int slots;
+    private final int queueCapacity;
+    private final List<ArrayDeque<Waiter>> queues; // By priority ordinal
+    private int freeSlots;
+    private int queued;
+
+    AdmissionController(int slots, int queueCapacity) {
+        this.slots = slots;
+        this.queueCapacity = Math.max(0, queueCapacity);
+        this.freeSlots = slots;
+        this.queues = new ArrayList<>(Battery.Priority.values().length);
+        for (int i = 0; i < Battery.Priority.values().length; i++) {
+            queues.add(new ArrayDeque<>());
+        }
+    }
+
+    int getSlots() {
+        return slots;
+    }
+
+    synchronized int getActive() {
+        return slots - freeSlots;
+    }
+
+    synchronized int getQueued() {
+        return queued;
+    }
+
+    // Take a free slot without waiting; a slot is only free while nobody is queued
+    synchronized boolean tryAcquire() {
+        if (freeSlots > 0) {
+            freeSlots--;
+            return true;
+        }
+        return false;
+    }
+
+    // Completes with null once the request holds a slot, or with the reason it was turned down.
+    // A request that is not given a slot within maxWaitNanos expires; zero means do not wait.
+    CompletableFuture<UsageResult.RejectionReason> acquire(Battery.Priority priority, long maxWaitNanos) {
+        Waiter shed = null;
+        Waiter waiter;
+        synchronized (this) {
+            if (freeSlots > 0) {
+                freeSlots--;
+                return CompletableFuture.completedFuture(null);
+            }
+            if (maxWaitNanos <= 0) {
+                return CompletableFuture.completedFuture(UsageResult.RejectionReason.DEADLINE_EXPIRED);
+            }
+            if (queued >= queueCapacity) {
+                shed = removeNewestBelow(priority);
+                if (shed == null) {
+                    return CompletableFuture.completedFuture(UsageResult.RejectionReason.QUEUE_FULL);
+                }
+            }
+            waiter = new Waiter(priority, System.nanoTime() + maxWaitNanos);
+            queues.get(priority.ordinal()).addLast(waiter);
+            queued++;
+        }
+        // Complete outside the lock, so the caller's continuations never run while holding it
+        if (shed != null) {
+            shed.future.complete(UsageResult.RejectionReason.SHED);
+        }
+        CompletableFuture.delayedExecutor(maxWaitNanos, TimeUnit.NANOSECONDS).execute(() -> expire(waiter));
+        return waiter.future;
+    }
+
+    // Hand the slot to the first waiting request that is still within its deadline, or free it
+    void release() {
+        List<Waiter> expired = new ArrayList<>();
+        Waiter next = null;
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (ArrayDeque<Waiter> queue : queues) {
+                while (next == null && !queue.isEmpty()) {
+                    Waiter candidate = queue.pollFirst();
+                    queued--;
+                    if (candidate.deadline - now > 0) {
+                        next = candidate;
+                    } else {
+                        expired.add(candidate);
+                    }
+                }
+            }
+            if (next == null) {
+                freeSlots++;
+            }
+        }
+        for (Waiter waiter : expired) {
+            waiter.future.complete(UsageResult.RejectionReason.DEADLINE_EXPIRED);
+        }
+        if (next != null) {
+            next.future.complete(null);
+        }
+    }
+
+    private void expire(Waiter waiter) {
+        synchronized (this) {
+            if (!queues.get(waiter.priority.ordinal()).remove(waiter)) {
+                return; // Already admitted or shed
+            }
+            queued--;
+        }
+        waiter.future.complete(UsageResult.RejectionReason.DEADLINE_EXPIRED);
+    }
+
+    // The most recently queued request of the lowest priority below the given one, removed from the queue
+    private Waiter removeNewestBelow(Battery.Priority priority) {
+        for (int i = queues.size() - 1; i > priority.ordinal(); i--) {
+            Waiter victim = queues.get(i).pollLast();
+            if (victim != null) {
+                queued--;
+                return victim;
+            }
+        }
+        return null;
+    }
+
+    private static class Waiter {
+        private final Battery.Priority priority;
+        private final long deadline;
+        private final CompletableFuture<UsageResult.RejectionReason> future = new CompletableFuture<>();
+
+        private Waiter(Battery.Priority priority, long deadline) {
+            this.priority = priority;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.fh.concurrency;
+
+import java.util.*;
+
+// Finds which of many literal keywords occur in a text in a single pass over the text
+// (Aho-Corasick). The keywords are built into a trie whose failure links point to the longest
+// proper suffix that is also a trie path, so the scan never backtracks.
+class AhoCorasickMatcher {
+    private final List<Node> nodes = new ArrayList<>();
+    private final int keywordCount;
+
+    AhoCorasickMatcher(List<String> keywords) {
+        this.keywordCount = keywords.size();
+        nodes.add(new Node());
+        for (int i = 0; i < keywords.size(); i++) {
+            int state = 0;
+            for (char c : keywords.get(i).toCharArray()) {
+                Integer next = nodes.get(state).next.get(c);
+                if (next == null) {
+                    next = nodes.size();
+                    nodes.add(new Node());
+                    nodes.get(state).next.put(c, next);
+                }
+                state = next;
+            }
+            nodes.get(state).keywords.add(i);
+        }
+        buildFailureLinks();
+    }
+
+    // Breadth-first, so the failure target of every node is complete before its children's
+    private void buildFailureLinks() {
+        ArrayDeque<Integer> queue = new ArrayDeque<>(nodes.get(0).next.values());
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            Node node = nodes.get(state);
+            for (Map.Entry<Character, Integer> edge : node.next.entrySet()) {
+                int child = edge.getValue();
+                int fallback = node.failure;
+                while (fallback != 0 && !nodes.get(fallback).next.containsKey(edge.getKey())) {
+                    fallback = nodes.get(fallback).failure;
+                }
+                Integer target = nodes.get(fallback).next.get(edge.getKey());
+                Node childNode = nodes.get(child);
+                childNode.failure = target != null && target != child ? target : 0;
+                // A node also reports the keywords that end at its failure target
+                childNode.keywords.addAll(nodes.get(childNode.failure).keywords);
+                queue.add(child);
+            }
+        }
+    }
+
+    // Indexes of the keywords that occur in the text
+    BitSet matches(CharSequence text) {
+        BitSet found = new BitSet(keywordCount);
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            Integer next;
+            while ((next = nodes.get(state).next.get(c)) == null && state != 0) {
+                state = nodes.get(state).failure;
+            }
+            state = next != null ? next : 0;
+            for (int keyword : nodes.get(state).keywords) {
+                found.set(keyword);
+            }
+        }
+        return found;
+    }
+
+    private static class Node {
+        private final Map<Character, Integer> next = new HashMap<>();
+        private final List<Integer> keywords = new ArrayList<>();
+        private int failure;
+    }
+}
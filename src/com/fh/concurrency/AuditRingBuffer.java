@@ -0,0 +1,71 @@
+package com.fh.concurrency;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bounded lock-free ring buffer for many producers and a single consumer. Producers claim a
+// slot with one CAS on the tail; every slot carries a sequence number that tells whether it is
+// free for the producer of a given lap or filled for the consumer, so neither side ever locks.
+class AuditRingBuffer<E> {
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head; // Only read and written by the consumer
+
+    AuditRingBuffer(int requestedCapacity) {
+        // Round up to a power of two so slot indexes are a mask instead of a division
+        int capacity = Integer.highestOneBit(Math.max(2, requestedCapacity) - 1) << 1;
+        this.slots = new Object[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    // Add an element; returns false without waiting when the buffer is full
+    boolean offer(E element) {
+        long position;
+        int index;
+        while (true) {
+            position = tail.get();
+            index = (int) (position & mask);
+            long sequence = sequences.getAcquire(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                return false; // The consumer has not freed this slot from the previous lap yet
+            }
+            // Otherwise another producer claimed the slot first; retry with the new tail
+        }
+        slots[index] = element;
+        // Volatile publish so a consumer that announced it is parking cannot miss this element
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    // Remove the oldest element, or return null when the buffer is empty. Consumer thread only.
+    @SuppressWarnings("unchecked")
+    E poll() {
+        int index = (int) (head & mask);
+        if (sequences.getAcquire(index) != head + 1) {
+            return null;
+        }
+        E element = (E) slots[index];
+        slots[index] = null;
+        sequences.setRelease(index, head + slots.length);
+        head++;
+        return element;
+    }
+
+    boolean isEmpty() {
+        return sequences.get((int) (head & mask)) != head + 1;
+    }
+}
@@ -3,80 +3,231 @@ package com.fh.concurrency;
 import java.io.IOException;
 import java.nio.file.*;
 import java.util.concurrent.*;
-import java.util.concurrent.locks.*;
+import java.util.concurrent.atomic.AtomicLong;
 
+// Usage requests are admitted through an AdmissionController: when every usage slot is taken a
+// request waits in a bounded priority queue instead of being dropped. Defaults for new batteries:
+//   -Dems.battery.queue=<n>      (requests that may wait for a slot, default 4 x usage slots)
+//   -Dems.battery.maxwait=<ms>   (longest a request waits for a slot, default 1000)
+// With a BatteryJournal the battery starts from the recovered charge and journals every change
+// of it before reporting the change; a change that cannot be journaled is undone and fails.
 public class Battery {
+
+    // Admission order for usage requests; critical loads are admitted ahead of and shed after the others
+    public enum Priority {
+        CRITICAL,
+        NORMAL,
+        DEFERRABLE
+    }
+
+    public static final String QUEUE_PROPERTY = "ems.battery.queue";
+    public static final String MAX_WAIT_PROPERTY = "ems.battery.maxwait";
+
+    // Charge is kept as a fixed-point number of millionths of a unit so it can be updated with a single CAS
+    private static final double FIXED_POINT_SCALE = 1_000_000.0;
+    private static final double INSUFFICIENT_CHARGE = -1;
+    private static final OperationMetrics CHARGE = EMSMetrics.operation("battery.charge");
+    private static final OperationMetrics USE_ENERGY = EMSMetrics.operation("battery.use");
+
     private final double capacity;
-    private double currentCharge;
-    private final Lock lock = new ReentrantLock();
-    private final Semaphore usageSemaphore;
+    private final long capacityFixed;
+    private final AtomicLong currentCharge = new AtomicLong();
+    private final AdmissionController admission;
+    private final long defaultMaxWaitMillis;
+    private final EMSExecutor executor;
+    private final BatteryJournal journal; // Optional; the charge starts at 0 and is not persisted when null
 
     public Battery(double capacity, int maxUsageSlots) {
+        this(capacity, maxUsageSlots, EMSExecutor.shared());
+    }
+
+    public Battery(double capacity, int maxUsageSlots, EMSExecutor executor) {
+        this(capacity, maxUsageSlots, Integer.getInteger(QUEUE_PROPERTY, 4 * maxUsageSlots),
+                Long.getLong(MAX_WAIT_PROPERTY, 1000), executor);
+    }
+
+    // Journaled battery; the journal must be open
+    public Battery(double capacity, int maxUsageSlots, BatteryJournal journal) {
+        this(capacity, maxUsageSlots, Integer.getInteger(QUEUE_PROPERTY, 4 * maxUsageSlots),
+                Long.getLong(MAX_WAIT_PROPERTY, 1000), EMSExecutor.shared(), journal);
+    }
+
+    public Battery(double capacity, int maxUsageSlots, int queueCapacity, long defaultMaxWaitMillis, EMSExecutor executor) {
+        this(capacity, maxUsageSlots, queueCapacity, defaultMaxWaitMillis, executor, null);
+    }
+
+    public Battery(double capacity, int maxUsageSlots, int queueCapacity, long defaultMaxWaitMillis, EMSExecutor executor,
+                   BatteryJournal journal) {
         this.capacity = capacity;
-        this.currentCharge = 0;
-        this.usageSemaphore = new Semaphore(maxUsageSlots); // Controls maximum concurrent usage
+        this.capacityFixed = toFixed(capacity);
+        this.admission = new AdmissionController(maxUsageSlots, queueCapacity); // Controls maximum concurrent usage
+        this.defaultMaxWaitMillis = defaultMaxWaitMillis;
+        this.executor = executor;
+        this.journal = journal;
+        if (journal != null) {
+            long recovered = journal.getRecoveredCharge();
+            currentCharge.set(Math.max(0, Math.min(capacityFixed, recovered)));
+            if (currentCharge.get() != recovered) {
+                // Journal the clamp too (e.g. when the capacity was lowered), so the next recovery agrees
+                journal.append(BatteryJournal.DRAWN, currentCharge.get() - recovered);
+            }
+        }
+    }
+
+    public double getCapacity() {
+        return capacity;
+    }
+
+    public double getCurrentCharge() {
+        return toUnits(currentCharge.get());
+    }
+
+    // Number of usage requests currently holding a usage slot
+    public int getActiveUsages() {
+        return admission.getActive();
     }
 
-    // Thread to handle charging from different energy sources
-    public class ChargingThread extends Thread {
-        private final double amount;
-        private final String source;
+    // Number of usage requests waiting for a usage slot
+    public int getQueuedUsages() {
+        return admission.getQueued();
+    }
+
+    // Takes a slot only if one is free; never jumps ahead of queued requests, since slots are
+    // handed straight to them
+    boolean tryAcquireUsageSlot() {
+        return admission.tryAcquire();
+    }
 
-        public ChargingThread(double amount, String source) {
-            this.amount = amount;
-            this.source = source;
+    void releaseUsageSlot() {
+        admission.release();
+    }
+
+    // Add energy, clamped at the capacity; returns the charge after this update
+    double addCharge(double amount) {
+        long delta = toFixed(amount);
+        long current;
+        long updated;
+        do {
+            current = currentCharge.get();
+            updated = Math.min(capacityFixed, current + delta);
+        } while (!currentCharge.compareAndSet(current, updated));
+        journal(BatteryJournal.ADDED, updated - current);
+        return toUnits(updated);
+    }
+
+    // Take energy if enough is stored; returns the remaining charge, or a negative value if there was not enough
+    double drawCharge(double amount) {
+        long delta = toFixed(amount);
+        long current;
+        long updated;
+        do {
+            current = currentCharge.get();
+            if (current < delta) {
+                return INSUFFICIENT_CHARGE;
+            }
+            updated = current - delta;
+        } while (!currentCharge.compareAndSet(current, updated));
+        journal(BatteryJournal.DRAWN, -delta);
+        return toUnits(updated);
+    }
+
+    // Take as much as is stored, up to the amount; returns what was taken
+    double drawUpTo(double amount) {
+        long wanted = toFixed(amount);
+        long current;
+        long taken;
+        do {
+            current = currentCharge.get();
+            taken = Math.min(current, wanted);
+        } while (taken > 0 && !currentCharge.compareAndSet(current, current - taken));
+        if (taken > 0) {
+            journal(BatteryJournal.DRAWN, -taken);
         }
+        return toUnits(taken);
+    }
 
-        @Override
-        public void run() {
-            lock.lock();
+    // Record the change actually applied, so replaying the journal in any order gives the same charge.
+    // A change the journal could not record is undone in memory before the failure is rethrown, so
+    // the caller reports an error instead of a change that would not survive a restart.
+    private void journal(byte type, long applied) {
+        if (journal != null && applied != 0) {
             try {
-                currentCharge = Math.min(capacity, currentCharge + amount);
-                System.out.println("Charging from " + source + ". Current charge: " + currentCharge);
-                // Log the charging activity to a log file with the equipment name
-                logChargingActivity(source, amount);
-            } finally {
-                lock.unlock();
+                journal.append(type, applied);
+            } catch (RuntimeException e) {
+                currentCharge.getAndAdd(-applied);
+                throw e;
             }
         }
     }
 
-    // Thread to handle usage of energy
-    public class UsageThread extends Thread {
-        private final double amount;
+    private static long toFixed(double amount) {
+        return Math.round(amount * FIXED_POINT_SCALE);
+    }
 
-        public UsageThread(double amount) {
-            this.amount = amount;
-        }
+    private static double toUnits(long fixed) {
+        return fixed / FIXED_POINT_SCALE;
+    }
 
-        @Override
-        public void run() {
-            if (usageSemaphore.tryAcquire()) { // Controls access to prevent overload
-                lock.lock();
-                try {
-                    if (currentCharge >= amount) {
-                        currentCharge -= amount;
-                        System.out.println("Used " + amount + " energy. Remaining charge: " + currentCharge);
-                    } else {
-                        System.out.println("Insufficient charge!");
+    // Charge from an energy source on the executor; completes with the charge after this update
+    public CompletableFuture<Double> charge(double amount, String source) {
+        long start = System.nanoTime();
+        CompletableFuture<Double> result = executor.supply(() -> {
+            double chargeAfter = addCharge(amount);
+            // Log the charging activity after the atomic update, so other requests never wait on I/O
+            logChargingActivity(source, amount);
+            return chargeAfter;
+        });
+        // Timed from the request to its completion, including the wait for an executor thread
+        result.whenComplete((chargeAfter, error) -> CHARGE.record(start, error == null));
+        return result;
+    }
+
+    // Use energy at normal priority, waiting up to the battery's default time for a usage slot
+    public CompletableFuture<UsageResult> useEnergy(double amount) {
+        return useEnergy(amount, Priority.NORMAL, defaultMaxWaitMillis);
+    }
+
+    // Use energy on the executor once a usage slot is free. The request is turned down when it
+    // cannot get a slot within maxWaitMillis, when the wait queue is full, or when it is displaced
+    // by a higher-priority request; it completes as insufficient charge when the charge is too low.
+    public CompletableFuture<UsageResult> useEnergy(double amount, Priority priority, long maxWaitMillis) {
+        long start = System.nanoTime();
+        CompletableFuture<UsageResult> result = admission.acquire(priority, TimeUnit.MILLISECONDS.toNanos(maxWaitMillis))
+                .thenApplyAsync(rejection -> {
+                    if (rejection != null) { // Controls access to prevent overload
+                        return UsageResult.overloaded(amount, getCurrentCharge(), rejection);
                     }
-                } finally {
-                    lock.unlock();
-                    usageSemaphore.release();
-                }
-            } else {
-                System.out.println("System overload: Usage limit reached");
-            }
-        }
+                    try {
+                        double remaining = drawCharge(amount);
+                        return remaining >= 0 ? UsageResult.served(amount, remaining) : UsageResult.insufficientCharge(amount, getCurrentCharge());
+                    } finally {
+                        releaseUsageSlot();
+                    }
+                }, executor);
+        // Turned-down requests count as completed; only failures are errors. The latency includes the wait for a slot.
+        result.whenComplete((usage, error) -> USE_ENERGY.record(start, error == null));
+        return result;
     }
 
-    // Public methods to create and start ChargingThread and UsageThread
-    public void startCharging(double amount, String source) {
-        new ChargingThread(amount, source).start();
+    // Variants that report the outcome on the console; the returned future completes after the report
+    public CompletableFuture<Double> startCharging(double amount, String source) {
+        return charge(amount, source).whenComplete((chargeAfter, error) -> {
+            if (error != null) {
+                System.err.println("Error charging from " + source + ": " + error.getMessage());
+            } else {
+                System.out.println("Charging from " + source + ". Current charge: " + chargeAfter);
+            }
+        });
     }
 
-    public void startUsingEnergy(double amount) {
-        new UsageThread(amount).start();
+    public CompletableFuture<UsageResult> startUsingEnergy(double amount) {
+        return useEnergy(amount).whenComplete((result, error) -> {
+            if (error != null) {
+                System.err.println("Error using energy: " + error.getMessage());
+            } else {
+                System.out.println(result);
+            }
+        });
     }
 
     // Method to log the charging activity to a file, including the equipment name
@@ -89,7 +240,6 @@ public class Battery {
             Files.write(logFilePath, 
                 (source + " charged by " + amount + " units at " + System.currentTimeMillis() + "\n").getBytes(),
                 StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-            System.out.println("Charging activity logged to " + logFilePath.toString());
         } catch (IOException e) {
             System.err.println("Error logging charging activity: " + e.getMessage());
         }
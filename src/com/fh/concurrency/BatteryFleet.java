@@ -0,0 +1,227 @@
+package com.fh.concurrency;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Many storage units behind one controller. Every unit keeps its own atomic charge and usage
+// slots, so requests routed to different units never contend with each other. A request goes to
+// one unit chosen by the dispatch policy, and is split across several units when none can serve
+// it alone.
+public class BatteryFleet {
+
+    public enum DispatchPolicy {
+        MOST_CHARGED,   // Unit with the highest charge first
+        ROUND_ROBIN,    // Units in turn
+        LEAST_LOADED    // Unit with the fewest active usage requests first
+    }
+
+    // Half of the smallest charge step a battery tracks; anything less counts as fully served
+    private static final double REMAINDER_TOLERANCE = 0.5e-6;
+
+    private final Battery[] units;
+    private final DispatchPolicy policy;
+    private final EMSExecutor executor;
+    private final AtomicInteger nextUnit = new AtomicInteger();
+
+    public BatteryFleet(List<Battery> units, DispatchPolicy policy) {
+        this(units, policy, EMSExecutor.shared());
+    }
+
+    public BatteryFleet(List<Battery> units, DispatchPolicy policy, EMSExecutor executor) {
+        if (units.isEmpty()) {
+            throw new IllegalArgumentException("A battery fleet needs at least one unit");
+        }
+        this.units = units.toArray(new Battery[0]);
+        this.policy = policy;
+        this.executor = executor;
+    }
+
+    // Fleet of identical units
+    public static BatteryFleet of(int unitCount, double capacityPerUnit, int maxUsageSlotsPerUnit, DispatchPolicy policy) {
+        List<Battery> units = new ArrayList<>(unitCount);
+        for (int i = 0; i < unitCount; i++) {
+            units.add(new Battery(capacityPerUnit, maxUsageSlotsPerUnit));
+        }
+        return new BatteryFleet(units, policy);
+    }
+
+    public int size() {
+        return units.length;
+    }
+
+    public Battery getUnit(int index) {
+        return units[index];
+    }
+
+    public double getTotalCharge() {
+        double total = 0;
+        for (Battery unit : units) {
+            total += unit.getCurrentCharge();
+        }
+        return total;
+    }
+
+    // Dispatch a usage request on the executor
+    public CompletableFuture<FleetUsageResult> useEnergy(double amount) {
+        return executor.supply(() -> dispatch(amount));
+    }
+
+    // Dispatch a usage request on the calling thread
+    public FleetUsageResult dispatch(double amount) {
+        double[] drawn = new double[units.length];
+
+        // Fast path: the unit the policy prefers, found with one scan and no sorting
+        int preferred = preferredUnit();
+        Battery first = units[preferred];
+        boolean anySlotFree = false;
+        if (first.tryAcquireUsageSlot()) {
+            anySlotFree = true;
+            try {
+                if (first.drawCharge(amount) >= 0) {
+                    drawn[preferred] = amount;
+                    return new FleetUsageResult(UsageResult.Status.SERVED, amount, drawn);
+                }
+            } finally {
+                first.releaseUsageSlot();
+            }
+        }
+
+        // Next: any other unit that can serve the whole request, in policy order
+        Integer[] order = dispatchOrder();
+        for (int index : order) {
+            if (index == preferred) {
+                continue;
+            }
+            Battery unit = units[index];
+            if (!unit.tryAcquireUsageSlot()) {
+                continue;
+            }
+            anySlotFree = true;
+            try {
+                if (unit.drawCharge(amount) >= 0) {
+                    drawn[index] = amount;
+                    return new FleetUsageResult(UsageResult.Status.SERVED, amount, drawn);
+                }
+            } finally {
+                unit.releaseUsageSlot();
+            }
+        }
+        if (!anySlotFree) {
+            return new FleetUsageResult(UsageResult.Status.OVERLOADED, amount, drawn);
+        }
+
+        // Otherwise split the request, taking what each unit has in dispatch order
+        double remaining = amount;
+        boolean anyUnitBusy = false;
+        try {
+            for (int index : order) {
+                if (remaining <= REMAINDER_TOLERANCE) {
+                    break;
+                }
+                Battery unit = units[index];
+                if (!unit.tryAcquireUsageSlot()) {
+                    anyUnitBusy = true;
+                    continue;
+                }
+                try {
+                    drawn[index] = unit.drawUpTo(remaining);
+                    remaining -= drawn[index];
+                } finally {
+                    unit.releaseUsageSlot();
+                }
+            }
+        } catch (RuntimeException e) {
+            // A unit could not journal its draw (and undid it); the request fails as a whole
+            restore(drawn);
+            throw e;
+        }
+        if (remaining <= REMAINDER_TOLERANCE) {
+            return new FleetUsageResult(UsageResult.Status.SERVED, amount, drawn);
+        }
+
+        // Not enough in the units that were free: give back what was taken
+        restore(drawn);
+        // Busy units might have covered the rest, so the fleet is overloaded rather than empty
+        UsageResult.Status status = anyUnitBusy ? UsageResult.Status.OVERLOADED : UsageResult.Status.INSUFFICIENT_CHARGE;
+        return new FleetUsageResult(status, amount, drawn);
+    }
+
+    // Give back what was drawn from each unit, clamped at its capacity: a charge that arrived in
+    // between leaves the unit as if the draw had never happened. A unit that cannot journal the
+    // restore keeps its draw, which stays in drawn so the result matches the charge.
+    private void restore(double[] drawn) {
+        for (int index = 0; index < units.length; index++) {
+            if (drawn[index] > 0) {
+                try {
+                    units[index].addCharge(drawn[index]);
+                    drawn[index] = 0;
+                } catch (RuntimeException e) {
+                    System.err.println("Error giving back charge to unit " + index + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // The unit the policy would pick first
+    private int preferredUnit() {
+        if (policy == DispatchPolicy.ROUND_ROBIN) {
+            return Math.floorMod(nextUnit.getAndIncrement(), units.length);
+        }
+        int best = 0;
+        int bestLoad = Integer.MAX_VALUE;
+        double bestCharge = -1;
+        for (int i = 0; i < units.length; i++) {
+            int load = policy == DispatchPolicy.LEAST_LOADED ? units[i].getActiveUsages() : 0;
+            double charge = units[i].getCurrentCharge();
+            if (load < bestLoad || (load == bestLoad && charge > bestCharge)) {
+                best = i;
+                bestLoad = load;
+                bestCharge = charge;
+            }
+        }
+        return best;
+    }
+
+    // Unit indexes in the order the policy wants them tried
+    private Integer[] dispatchOrder() {
+        Integer[] order = new Integer[units.length];
+        switch (policy) {
+            case ROUND_ROBIN:
+                int start = Math.floorMod(nextUnit.get(), units.length);
+                for (int i = 0; i < units.length; i++) {
+                    order[i] = (start + i) % units.length;
+                }
+                return order;
+            case LEAST_LOADED:
+                fillIndexes(order);
+                // Snapshot the loads so the sort sees consistent keys
+                int[] loads = new int[units.length];
+                double[] charges = new double[units.length];
+                for (int i = 0; i < units.length; i++) {
+                    loads[i] = units[i].getActiveUsages();
+                    charges[i] = units[i].getCurrentCharge();
+                }
+                Arrays.sort(order, Comparator.<Integer>comparingInt(i -> loads[i])
+                        .thenComparing(i -> -charges[i]));
+                return order;
+            default:
+                fillIndexes(order);
+                double[] snapshot = new double[units.length];
+                for (int i = 0; i < units.length; i++) {
+                    snapshot[i] = units[i].getCurrentCharge();
+                }
+                Arrays.sort(order, Comparator.comparingDouble(i -> -snapshot[i]));
+                return order;
+        }
+    }
+
+    private static void fillIndexes(Integer[] order) {
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.fh.concurrency;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+// Append-only binary journal of a battery's charge changes, with snapshots, so the charge
+// survives a restart. Every change is a fixed-size record of the change actually applied
+// (after clamping at the capacity), so the charge is the snapshot plus the sum of the records
+// after it, whatever order concurrent changes were journaled in. Records are written into a
+// memory-mapped segment of ~/Documents/<directory>/<name>.<sequence>.journal and are in the page
+// cache as soon as the change returns, so they survive a crash of the process; they are forced to
+// disk with every snapshot and on close. When a segment is full a snapshot (<name>.snapshot) is
+// written and the journal continues in a new segment, so recovery loads the snapshot and replays
+// at most one segment. A record that is cut off or fails its checksum ends the replay.
+//   -Dems.battery.snapshot.records=<n>   (records per segment, i.e. between snapshots, default 10000)
+public class BatteryJournal implements AutoCloseable {
+    public static final String SNAPSHOT_RECORDS_PROPERTY = "ems.battery.snapshot.records";
+    public static final String DEFAULT_NAME = "battery";
+    static final byte ADDED = 1;
+    static final byte DRAWN = 2;
+
+    private static final String EXTENSION = ".journal";
+    private static final String SNAPSHOT_EXTENSION = ".snapshot";
+    private static final int SNAPSHOT_MAGIC = 0x42534E50; // "BSNP"
+    private static final int FORMAT_VERSION = 1;
+    // Timestamp (8), applied change in millionths of a unit (8), type (1), padding (3), CRC32C of the first 20 bytes (4)
+    private static final int RECORD_SIZE = 24;
+    private static final int CHECKSUMMED_BYTES = 20;
+    private static final int SNAPSHOT_SIZE = 36;
+
+    private final Path directoryPath;
+    private final String name;
+    private final int recordsPerSegment;
+    private final CRC32C crc = new CRC32C();
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+
+    // Guarded by this
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long sequence;
+    private long journaledCharge; // Snapshot plus every record written since, in millionths of a unit
+    private boolean open;
+
+    private long recoveredCharge;
+    private long replayedRecords;
+    private long recoveryNanos;
+
+    public BatteryJournal(String directory) {
+        this(directory, DEFAULT_NAME);
+    }
+
+    public BatteryJournal(String directory, String name) {
+        this(directory, name, Integer.getInteger(SNAPSHOT_RECORDS_PROPERTY, 10_000));
+    }
+
+    public BatteryJournal(String directory, String name, int recordsPerSegment) {
+        String homeDirectory = System.getProperty("user.home");
+        this.directoryPath = Paths.get(homeDirectory, "Documents", directory);
+        this.name = name;
+        this.recordsPerSegment = Math.max(1, recordsPerSegment);
+    }
+
+    // Recover the charge from the latest snapshot and the journal after it, then start a new
+    // segment for the changes to come
+    public synchronized void open() throws EMSException {
+        long start = System.nanoTime();
+        try {
+            Files.createDirectories(directoryPath);
+            long charge = 0;
+            long firstSequence = 1;
+            ByteBuffer snapshot = readSnapshot();
+            if (snapshot != null) {
+                charge = snapshot.getLong(8);
+                firstSequence = snapshot.getLong(16);
+            }
+            // Normally only the segment written since the snapshot; more if a snapshot was lost in a crash
+            List<Path> segments = segmentsFrom(firstSequence);
+            long replayed = 0;
+            for (Path file : segments) {
+                long[] result = replay(file);
+                charge += result[0];
+                replayed += result[1];
+            }
+            long lastSequence = segments.isEmpty() ? firstSequence - 1 : sequenceOf(segments.get(segments.size() - 1));
+            journaledCharge = charge;
+            recoveredCharge = charge;
+            replayedRecords = replayed;
+            // Snapshot the recovered charge and continue in a new segment, so whatever followed a
+            // torn record is never replayed
+            sequence = Math.max(firstSequence, lastSequence + 1) - 1;
+            writeSnapshot();
+            startSegment(sequence + 1);
+            open = true;
+        } catch (IOException e) {
+            throw new EMSFileReadException("Unable to recover battery journal in " + directoryPath, e);
+        }
+        recoveryNanos = System.nanoTime() - start;
+    }
+
+    // The charge in millionths of a unit at the time of the last journaled change before open()
+    long getRecoveredCharge() {
+        return recoveredCharge;
+    }
+
+    public double getRecoveredUnits() {
+        return recoveredCharge / 1_000_000.0;
+    }
+
+    public long getReplayedRecords() {
+        return replayedRecords;
+    }
+
+    public long getRecoveryNanos() {
+        return recoveryNanos;
+    }
+
+    // Journal a change of the charge. Called after the change has been applied in memory and before
+    // it is reported to the caller. Throws only when the change was not journaled, so the caller can
+    // undo it.
+    synchronized void append(byte type, long applied) {
+        if (!open) {
+            throw new IllegalStateException("Battery journal is not open: " + directoryPath.resolve(name));
+        }
+        if (segment == null) {
+            // The last segment switch failed; try again before losing the change
+            rollOver();
+        }
+        record.clear();
+        record.putLong(System.currentTimeMillis()).putLong(applied).put(type).put((byte) 0).putShort((short) 0);
+        crc.reset();
+        crc.update(record.array(), 0, CHECKSUMMED_BYTES);
+        record.putInt((int) crc.getValue());
+        segment.put(record.array());
+        journaledCharge += applied;
+        if (!segment.hasRemaining()) {
+            try {
+                rollOver();
+            } catch (UncheckedIOException e) {
+                // The record is in the full segment; the next append tries the switch again
+                System.err.println(e.getMessage() + ": " + e.getCause().getCause().getMessage());
+            }
+        }
+    }
+
+    // Write a snapshot of the journaled charge and continue in a new segment
+    public synchronized void snapshot() throws EMSException {
+        try {
+            writeSnapshot();
+            startSegment(sequence + 1);
+        } catch (IOException e) {
+            throw new EMSFileWriteException("Error writing battery snapshot in " + directoryPath, e);
+        }
+    }
+
+    private void rollOver() {
+        try {
+            writeSnapshot();
+            startSegment(sequence + 1);
+        } catch (IOException e) {
+            closeSegment();
+            throw new UncheckedIOException(new IOException("Error switching battery journal segment", e));
+        }
+    }
+
+    // Force the current segment, write a snapshot covering it and everything before, and remove
+    // the segments it covers
+    private void writeSnapshot() throws IOException {
+        if (segment != null) {
+            segment.force();
+        }
+        long next = sequence + 1;
+        ByteBuffer snapshot = ByteBuffer.allocate(SNAPSHOT_SIZE);
+        snapshot.putInt(SNAPSHOT_MAGIC).putInt(FORMAT_VERSION).putLong(journaledCharge).putLong(next).putLong(System.currentTimeMillis());
+        crc.reset();
+        crc.update(snapshot.array(), 0, SNAPSHOT_SIZE - 4);
+        snapshot.putInt((int) crc.getValue());
+        snapshot.flip();
+
+        // Temporary file, synced and atomically renamed, so there is always one complete snapshot
+        Path snapshotPath = directoryPath.resolve(name + SNAPSHOT_EXTENSION);
+        Path tempPath = directoryPath.resolve(name + SNAPSHOT_EXTENSION + ".tmp");
+        try (FileChannel out = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (snapshot.hasRemaining()) {
+                out.write(snapshot);
+            }
+            out.force(true);
+        }
+        Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        closeSegment();
+        for (Path old : segmentsBefore(next)) {
+            Files.deleteIfExists(old);
+        }
+    }
+
+    private void startSegment(long newSequence) throws IOException {
+        Path file = segmentPath(newSequence);
+        // A leftover segment with this number was replayed already or never covered by a snapshot
+        Files.deleteIfExists(file);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) recordsPerSegment * RECORD_SIZE);
+        sequence = newSequence;
+    }
+
+    private void closeSegment() {
+        segment = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing battery journal: " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    // Sum of the valid records of a segment and their number, read through a read-only mapping
+    private long[] replay(Path file) throws IOException {
+        long sum = 0;
+        long count = 0;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            CRC32C check = new CRC32C();
+            for (int position = 0; position + RECORD_SIZE <= mapped.limit(); position += RECORD_SIZE) {
+                byte type = mapped.get(position + 16);
+                if (type != ADDED && type != DRAWN) {
+                    break; // End of the written part of the segment
+                }
+                check.reset();
+                check.update(mapped.slice(position, CHECKSUMMED_BYTES));
+                if ((int) check.getValue() != mapped.getInt(position + CHECKSUMMED_BYTES)) {
+                    break; // Torn by a crash
+                }
+                sum += mapped.getLong(position + 8);
+                count++;
+            }
+        }
+        return new long[] {sum, count};
+    }
+
+    private ByteBuffer readSnapshot() throws IOException {
+        Path snapshotPath = directoryPath.resolve(name + SNAPSHOT_EXTENSION);
+        if (Files.notExists(snapshotPath)) {
+            return null;
+        }
+        ByteBuffer snapshot = ByteBuffer.wrap(Files.readAllBytes(snapshotPath));
+        CRC32C check = new CRC32C();
+        check.update(snapshot.array(), 0, Math.max(0, snapshot.capacity() - 4));
+        if (snapshot.capacity() != SNAPSHOT_SIZE || snapshot.getInt(0) != SNAPSHOT_MAGIC
+                || snapshot.getInt(4) != FORMAT_VERSION || snapshot.getInt(SNAPSHOT_SIZE - 4) != (int) check.getValue()) {
+            // Snapshots are replaced atomically, so this is not a crash; refuse to guess the charge
+            throw new IOException("Unreadable battery snapshot: " + snapshotPath);
+        }
+        return snapshot;
+    }
+
+    private Path segmentPath(long segmentSequence) {
+        return directoryPath.resolve(String.format("%s.%06d%s", name, segmentSequence, EXTENSION));
+    }
+
+    private long sequenceOf(Path file) {
+        String fileName = file.getFileName().toString();
+        return Long.parseLong(fileName.substring(name.length() + 1, fileName.length() - EXTENSION.length()));
+    }
+
+    // The journal segments, oldest first
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directoryPath, name + ".*" + EXTENSION)) {
+            for (Path entry : stream) {
+                String fileName = entry.getFileName().toString();
+                if (fileName.substring(name.length() + 1, fileName.length() - EXTENSION.length()).matches("\\d+")) {
+                    segments.add(entry);
+                }
+            }
+        }
+        segments.sort((a, b) -> Long.compare(sequenceOf(a), sequenceOf(b)));
+        return segments;
+    }
+
+    private List<Path> segmentsFrom(long firstSequence) throws IOException {
+        List<Path> segments = segments();
+        segments.removeIf(file -> sequenceOf(file) < firstSequence);
+        return segments;
+    }
+
+    private List<Path> segmentsBefore(long nextSequence) throws IOException {
+        List<Path> segments = segments();
+        segments.removeIf(file -> sequenceOf(file) >= nextSequence);
+        return segments;
+    }
+
+    // Force the journal and write a snapshot, so the next start replays nothing
+    @Override
+    public synchronized void close() {
+        if (!open) {
+            return;
+        }
+        try {
+            writeSnapshot();
+        } catch (IOException e) {
+            System.err.println("Error writing battery snapshot: " + e.getMessage());
+        }
+        closeSegment();
+        open = false;
+    }
+}
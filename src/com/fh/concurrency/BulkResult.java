@@ -0,0 +1,115 @@
+package com.fh.concurrency;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Outcome of a bulk log file operation (see LogManager): what happened to each file, in the
+// order the files were given, and how long the whole operation took
+public class BulkResult {
+
+    public enum Status {
+        DONE,
+        SKIPPED,
+        FAILED
+    }
+
+    // What happened to one file: done (path is where the file is now, or was for a delete),
+    // skipped with the reason, or failed with the error
+    public static final class FileResult {
+        private final String fileName;
+        private final Status status;
+        private final Path path;
+        private final String message;
+
+        private FileResult(String fileName, Status status, Path path, String message) {
+            this.fileName = fileName;
+            this.status = status;
+            this.path = path;
+            this.message = message;
+        }
+
+        static FileResult done(String fileName, Path path) {
+            return new FileResult(fileName, Status.DONE, path, null);
+        }
+
+        static FileResult skipped(String fileName, Path path, String reason) {
+            return new FileResult(fileName, Status.SKIPPED, path, reason);
+        }
+
+        static FileResult failed(String fileName, Exception error) {
+            return new FileResult(fileName, Status.FAILED, null, error.toString());
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        // Why the file was skipped or the operation failed; null when it was done
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            switch (status) {
+                case DONE:
+                    return fileName + ": done (" + path + ")";
+                case SKIPPED:
+                    return fileName + ": skipped, " + message;
+                default:
+                    return fileName + ": failed, " + message;
+            }
+        }
+    }
+
+    private final String operation;
+    private final List<FileResult> results;
+    private final long elapsedNanos;
+    private final int[] counts = new int[Status.values().length];
+
+    BulkResult(String operation, FileResult[] results, long elapsedNanos) {
+        this.operation = operation;
+        this.results = Collections.unmodifiableList(Arrays.asList(results));
+        this.elapsedNanos = elapsedNanos;
+        for (FileResult result : results) {
+            counts[result.status.ordinal()]++;
+        }
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public List<FileResult> getResults() {
+        return results;
+    }
+
+    public int count(Status status) {
+        return counts[status.ordinal()];
+    }
+
+    public List<FileResult> getFailures() {
+        return results.stream().filter(result -> result.status == Status.FAILED).toList();
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    // e.g. "delete: 9998 of 10000 files done in 812 ms, 1 skipped, 1 failed"
+    @Override
+    public String toString() {
+        return operation + ": " + count(Status.DONE) + " of " + results.size() + " files done in "
+                + elapsedNanos / 1_000_000 + " ms, " + count(Status.SKIPPED) + " skipped, " + count(Status.FAILED) + " failed";
+    }
+}
@@ -28,6 +28,12 @@ public EMSFileReadException(String message, Throwable cause) {
 }
 }
 
+class EMSFileWriteException extends EMSException {
+public EMSFileWriteException(String message, Throwable cause) {
+    super(message, cause);
+}
+}
+
 //Regex or pattern-related exceptions
 class EMSInvalidRegexException extends EMSException {
 public EMSInvalidRegexException(String message, Throwable cause) {
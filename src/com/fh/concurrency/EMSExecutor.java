@@ -0,0 +1,88 @@
+package com.fh.concurrency;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Shared execution layer for battery operations and searches. Tasks run either on a fixed pool
+// of platform threads or on one virtual thread per task, chosen by configuration:
+//   -Dems.executor=platform|virtual   (default platform)
+//   -Dems.executor.threads=<n>        (platform pool size, default 2 x available processors)
+public class EMSExecutor implements Executor, AutoCloseable {
+
+    public enum Mode {
+        PLATFORM,
+        VIRTUAL
+    }
+
+    public static final String MODE_PROPERTY = "ems.executor";
+    public static final String THREADS_PROPERTY = "ems.executor.threads";
+
+    private static EMSExecutor shared;
+
+    private final Mode mode;
+    private final ExecutorService executor;
+
+    public EMSExecutor(Mode mode, int platformThreads) {
+        this.mode = mode;
+        if (mode == Mode.VIRTUAL) {
+            this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ems-virtual-", 0).factory());
+        } else {
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(platformThreads, runnable -> {
+                Thread thread = new Thread(runnable, "ems-worker-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // The executor used when a component is not given one, configured from the system properties
+    public static synchronized EMSExecutor shared() {
+        if (shared == null) {
+            Mode mode = "virtual".equalsIgnoreCase(System.getProperty(MODE_PROPERTY)) ? Mode.VIRTUAL : Mode.PLATFORM;
+            int threads = Integer.getInteger(THREADS_PROPERTY, 2 * Runtime.getRuntime().availableProcessors());
+            shared = new EMSExecutor(mode, threads);
+        }
+        return shared;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    // Run a task and complete the future with its result, or with the exception it threw
+    public <T> CompletableFuture<T> supply(Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(task.call());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    // Stop accepting tasks and wait for the running ones to finish
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.fh.concurrency;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Registry of the per-operation metrics of the system. Every operation type is registered as an
+// MBean named com.fh.concurrency:type=Operation,name=<operation>, and a snapshot of all of them
+// can be appended to a file periodically:
+//   -Dems.metrics.interval=<seconds>   (snapshot interval, default 0 = no snapshots)
+//   -Dems.metrics.file=<path>          (default metrics.log)
+public class EMSMetrics {
+    public static final String INTERVAL_PROPERTY = "ems.metrics.interval";
+    public static final String FILE_PROPERTY = "ems.metrics.file";
+
+    private static final Map<String, OperationMetrics> operations = new ConcurrentSkipListMap<>();
+    private static ScheduledExecutorService reporter;
+
+    private EMSMetrics() {
+    }
+
+    // The metrics of an operation type, created and registered with JMX on first use
+    public static OperationMetrics operation(String name) {
+        return operations.computeIfAbsent(name, key -> {
+            OperationMetrics metrics = new OperationMetrics(key);
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName objectName = new ObjectName("com.fh.concurrency:type=Operation,name=" + ObjectName.quote(key));
+                if (!server.isRegistered(objectName)) {
+                    server.registerMBean(metrics, objectName);
+                }
+            } catch (JMException e) {
+                System.err.println("Could not register metrics for " + key + ": " + e.getMessage());
+            }
+            return metrics;
+        });
+    }
+
+    // One line per operation type that has been used: count, errors and latency percentiles
+    public static String snapshot() {
+        StringBuilder report = new StringBuilder(String.format("%-22s %10s %8s %10s %10s %10s %10s %10s%n",
+                "Operation", "Count", "Errors", "avg us", "p50 us", "p99 us", "p99.9 us", "max us"));
+        for (OperationMetrics metrics : operations.values()) {
+            LatencyHistogram.Snapshot latencies = metrics.snapshot();
+            if (latencies.getCount() == 0) {
+                continue;
+            }
+            report.append(String.format("%-22s %10d %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    metrics.getName(), latencies.getCount(), metrics.getErrorCount(),
+                    latencies.getMean() / 1000.0,
+                    latencies.getPercentile(50) / 1000.0,
+                    latencies.getPercentile(99) / 1000.0,
+                    latencies.getPercentile(99.9) / 1000.0,
+                    latencies.getMax() / 1000.0));
+        }
+        return report.toString();
+    }
+
+    // Start appending snapshots as configured by the system properties; does nothing without an interval
+    public static void startReporting() {
+        long intervalSeconds = Long.getLong(INTERVAL_PROPERTY, 0);
+        if (intervalSeconds > 0) {
+            startReporting(intervalSeconds, Paths.get(System.getProperty(FILE_PROPERTY, "metrics.log")));
+        }
+    }
+
+    // Append a snapshot to the file every intervalSeconds on a daemon thread
+    public static synchronized void startReporting(long intervalSeconds, Path file) {
+        stopReporting();
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            try {
+                Files.writeString(file, new Date() + "\n" + snapshot() + "\n", StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                System.err.println("Error writing metrics snapshot: " + e.getMessage());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public static synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.fh.concurrency;
+
+import java.time.Instant;
+
+// Aggregates of an equipment's readings over one window, covering timestamps in [from, to)
+public class EnergyAggregate {
+    private final String window;
+    private final long fromMillis;
+    private final long toMillis;
+    private final long count;
+    private final double sum;
+    private final double min;
+    private final double max;
+    private final double lastValue;
+    private final long lastTimestampMillis;
+
+    EnergyAggregate(String window, long fromMillis, long toMillis, long count, double sum,
+                    double min, double max, double lastValue, long lastTimestampMillis) {
+        this.window = window;
+        this.fromMillis = fromMillis;
+        this.toMillis = toMillis;
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+        this.lastValue = lastValue;
+        this.lastTimestampMillis = lastTimestampMillis;
+    }
+
+    // The window specification, e.g. "sliding:1h"
+    public String getWindow() {
+        return window;
+    }
+
+    public long getFromMillis() {
+        return fromMillis;
+    }
+
+    public long getToMillis() {
+        return toMillis;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    // Min, max, mean and last value are NaN when the window has no readings
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    public double getLastValue() {
+        return lastValue;
+    }
+
+    public long getLastTimestampMillis() {
+        return lastTimestampMillis;
+    }
+
+    @Override
+    public String toString() {
+        if (count == 0) {
+            return String.format("%-14s no readings since %s", window, Instant.ofEpochMilli(fromMillis));
+        }
+        return String.format("%-14s count=%d sum=%.3f min=%.3f max=%.3f mean=%.3f last=%.3f at %s (since %s)",
+                window, count, sum, min, max, getMean(), lastValue,
+                Instant.ofEpochMilli(lastTimestampMillis), Instant.ofEpochMilli(fromMillis));
+    }
+}
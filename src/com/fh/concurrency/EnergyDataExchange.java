@@ -2,59 +2,629 @@ package com.fh.concurrency;
 
 import java.nio.file.*;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.stream.Stream;
 
-public class EnergyDataExchange {
+public class EnergyDataExchange implements AutoCloseable {
+    private static final OperationMetrics LOG_ENERGY_DATA = EMSMetrics.operation("energy.log");
+    private static final OperationMetrics LOG_ENERGY_BATCH = EMSMetrics.operation("energy.logBatch");
+    private static final OperationMetrics LOG_ENERGY_DATA_ASYNC = EMSMetrics.operation("energy.logAsync");
+    private static final OperationMetrics RETRIEVE_ENERGY_DATA = EMSMetrics.operation("energy.retrieve");
+    private static final OperationMetrics RETRIEVE_LAST_READINGS = EMSMetrics.operation("energy.lastReadings");
+    private static final OperationMetrics CONVERT_TO_BINARY = EMSMetrics.operation("energy.convert");
+
+    // How readings are stored: text lines in <equipment>.log, or a compressed binary time series
+    // in <equipment>.ems (see EnergySegment) that keeps only the timestamp and value of each reading.
+    //   -Dems.storage=text|binary   (default text)
+    public enum StorageFormat {
+        TEXT,
+        BINARY
+    }
+
+    public static final String STORAGE_PROPERTY = "ems.storage";
+
+    // Rolling aggregates kept per equipment (see RollingWindow for the syntax)
+    //   -Dems.aggregates.windows=<window>,...   (default DEFAULT_WINDOWS)
+    public static final String WINDOWS_PROPERTY = "ems.aggregates.windows";
+    public static final String DEFAULT_WINDOWS = "sliding:5m,sliding:1h,tumbling:1h,tumbling:1d";
 
     private String logDirectory;
     private Metadata metadata;
+    private EnergyDataWriter writer; // Created on first asynchronous write unless one is passed in
+    private volatile EnergyDataTail tail; // Created on first subscription
+    private final StorageFormat format;
+    private final Map<String, EnergySegment> segments = new ConcurrentHashMap<>(); // Open binary segments by equipment
+    private final LogCache cache = LogCache.shared();
+    private final List<RollingWindow> windows = RollingWindow.parseAll(System.getProperty(WINDOWS_PROPERTY, DEFAULT_WINDOWS));
+    private final Map<String, CompletableFuture<RollingAggregates>> aggregates = new ConcurrentHashMap<>(); // Rolling aggregates by equipment
+    private final Map<String, ByteBuffer> batchBuffers = new ConcurrentHashMap<>(); // Text encoding buffers by equipment
+
+    private static final int BATCH_BUFFER_SIZE = 64 * 1024;
 
     public EnergyDataExchange(String logDirectory, Metadata metadata) {
+        this(logDirectory, metadata, null, configuredFormat());
+    }
+
+    public EnergyDataExchange(String logDirectory, Metadata metadata, EnergyDataWriter writer) {
+        this(logDirectory, metadata, writer, configuredFormat());
+    }
+
+    public EnergyDataExchange(String logDirectory, Metadata metadata, EnergyDataWriter writer, StorageFormat format) {
         this.logDirectory = logDirectory;
         this.metadata = metadata;
+        this.writer = writer;
+        this.format = format;
+    }
+
+    private static StorageFormat configuredFormat() {
+        return "binary".equalsIgnoreCase(System.getProperty(STORAGE_PROPERTY)) ? StorageFormat.BINARY : StorageFormat.TEXT;
+    }
+
+    public StorageFormat getFormat() {
+        return format;
     }
 
     // Log energy data for a specific equipment
     public void logEnergyData(String equipmentName, String energyData) {
+        long start = System.nanoTime();
+        boolean succeeded = false;
         try {
-            // Build the full path
-            String homeDirectory = System.getProperty("user.home");
-            Path logFilePath = Paths.get(homeDirectory, "Documents", logDirectory, equipmentName + ".log");
+            // Loaded before the write, so a rebuild from the stored data cannot count this reading twice
+            RollingAggregates rolling = aggregatesOf(equipmentName);
+            EnergyReading reading = stamp(energyData);
+            if (format == StorageFormat.BINARY) {
+                appendReading(equipmentName, reading);
+            } else {
+                appendLine(equipmentName, energyData);
+            }
+            rolling.add(reading.getTimestampMillis(), reading.getValue());
+            tailAppended(equipmentName, reading);
+            System.out.println("Energy data logged for " + equipmentName);
+            succeeded = true;
+        } catch (EMSException e) {
+            e.printStackTrace();
+        } finally {
+            LOG_ENERGY_DATA.record(start, succeeded);
+        }
+    }
 
+    // Append the energy data as a line of the equipment's text log, rotating the log into a new
+    // segment first when the active one is full
+    private void appendLine(String equipmentName, String energyData) throws EMSException {
+        try {
             // Ensure directories exist
-            Files.createDirectories(logFilePath.getParent());
+            Files.createDirectories(logDirPath(equipmentName));
 
-            // Write the energy data to the file
-            Files.write(logFilePath, (energyData + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-            System.out.println("Energy data logged for " + equipmentName);
+            // Write the energy data to the active segment
+            byte[] bytes = (energyData + "\n").getBytes(StandardCharsets.UTF_8);
+            EnergyLogManifest manifest = EnergyLogManifest.of(logDirPath(equipmentName), equipmentName);
+            synchronized (manifest) {
+                Path logFilePath = manifest.prepareAppend(bytes.length);
+                Files.write(logFilePath, bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                manifest.appended(bytes.length, 1, EnergyReading.timestampOf(energyData));
+                cache.appended(logFilePath, energyData, bytes.length);
+            }
 
             // Optionally, update metadata about this operation
             metadata.logOperation(equipmentName, "Log energy data");
 
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new EMSFileWriteException("Error writing energy data for " + equipmentName, e);
+        }
+    }
+
+    // Log a batch of readings of an equipment: the readings [offset, offset + length) of the arrays,
+    // timestamps in epoch milliseconds. Readings are encoded straight from the arrays into reused
+    // buffers, with nothing allocated per reading and one metadata entry per batch. Text logs get
+    // a "<timestamp> <value>" line per reading, the value with at most six decimals. Throws when
+    // the readings could not be stored; the aggregates and the tail only see stored readings.
+    public void logEnergyData(String equipmentName, long[] timestampsMillis, double[] values, int offset, int length) throws EMSException {
+        if (timestampsMillis.length != values.length) {
+            throw new IllegalArgumentException("Got " + timestampsMillis.length + " timestamps but " + values.length + " values");
+        }
+        Objects.checkFromIndexSize(offset, length, timestampsMillis.length);
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            RollingAggregates rolling = aggregatesOf(equipmentName);
+            if (format == StorageFormat.BINARY) {
+                appendReadings(equipmentName, timestampsMillis, values, offset, length);
+            } else {
+                appendLines(equipmentName, timestampsMillis, values, offset, length);
+            }
+            for (int i = offset; i < offset + length; i++) {
+                rolling.add(timestampsMillis[i], values[i]);
+            }
+            tailAppended(equipmentName, timestampsMillis, values, offset, length);
+            System.out.println("Logged " + length + " energy readings for " + equipmentName);
+            succeeded = true;
+        } finally {
+            LOG_ENERGY_BATCH.record(start, succeeded);
+        }
+    }
+
+    public void logEnergyData(String equipmentName, long[] timestampsMillis, double[] values) throws EMSException {
+        logEnergyData(equipmentName, timestampsMillis, values, 0, timestampsMillis.length);
+    }
+
+    // Append readings as lines of the equipment's text log. They are encoded into the equipment's
+    // buffer and written a buffer at a time, each write checked against the rotation limits.
+    private void appendLines(String equipmentName, long[] timestampsMillis, double[] values, int offset, int length) throws EMSException {
+        try {
+            Files.createDirectories(logDirPath(equipmentName));
+            EnergyLogManifest manifest = EnergyLogManifest.of(logDirPath(equipmentName), equipmentName);
+            synchronized (manifest) {
+                // Only used while holding the manifest's lock
+                ByteBuffer buffer = batchBuffers.computeIfAbsent(equipmentName, name -> ByteBuffer.allocateDirect(BATCH_BUFFER_SIZE));
+                int next = offset;
+                int end = offset + length;
+                while (next < end) {
+                    buffer.clear();
+                    long fromMillis = Long.MAX_VALUE;
+                    long toMillis = Long.MIN_VALUE;
+                    int lines = 0;
+                    while (next < end && buffer.remaining() >= EnergyReading.MAX_LINE_BYTES) {
+                        EnergyReading.putLine(buffer, timestampsMillis[next], values[next]);
+                        fromMillis = Math.min(fromMillis, timestampsMillis[next]);
+                        toMillis = Math.max(toMillis, timestampsMillis[next]);
+                        next++;
+                        lines++;
+                    }
+                    buffer.flip();
+                    int bytes = buffer.remaining();
+                    ByteBuffer written = buffer.duplicate();
+                    Path logFilePath = manifest.prepareAppend(bytes);
+                    try (FileChannel channel = FileChannel.open(logFilePath, StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                    }
+                    manifest.appended(bytes, lines, fromMillis, toMillis);
+                    // The lines are only decoded when the cache holds the file; without the final newline
+                    cache.appended(logFilePath, () -> StandardCharsets.US_ASCII.decode(written.limit(bytes - 1)).toString(), bytes);
+                }
+            }
+            metadata.logOperation(equipmentName, "Log " + length + " energy readings");
+        } catch (IOException e) {
+            throw new EMSFileWriteException("Error writing energy data for " + equipmentName, e);
+        }
+    }
+
+    // Store readings in the equipment's binary segment
+    private void appendReadings(String equipmentName, long[] timestampsMillis, double[] values, int offset, int length) throws EMSException {
+        try {
+            segment(equipmentName).append(timestampsMillis, values, offset, length);
+        } catch (IOException e) {
+            throw new EMSFileWriteException("Error writing energy data for " + equipmentName, e);
+        }
+        metadata.logOperation(equipmentName, "Log " + length + " energy readings");
+    }
+
+    // Queue energy data for a specific equipment; the future completes once the data is durable.
+    // Both formats go through the writer's group commit and its fsync policy.
+    public CompletableFuture<Void> logEnergyDataAsync(String equipmentName, String energyData) {
+        long start = System.nanoTime();
+        RollingAggregates rolling = aggregatesOf(equipmentName);
+        EnergyReading reading = stamp(energyData);
+        CompletableFuture<Void> result;
+        if (format == StorageFormat.BINARY) {
+            try {
+                result = writer().submit(equipmentName, segment(equipmentName), reading.getTimestampMillis(), reading.getValue());
+            } catch (IOException e) {
+                result = CompletableFuture.failedFuture(new EMSFileWriteException("Error opening energy data for " + equipmentName, e));
+            }
+        } else {
+            result = writer().submit(equipmentName, energyData);
+        }
+        // Completes only after the aggregates and the tail have seen the reading
+        result = result.thenRun(() -> {
+            rolling.add(reading.getTimestampMillis(), reading.getValue());
+            tailAppended(equipmentName, reading);
+        });
+        // Timed until the data is durable
+        result.whenComplete((ignored, error) -> LOG_ENERGY_DATA_ASYNC.record(start, error == null));
+        return result;
+    }
+
+    // A live tail of the energy data of the given equipment: subscribers get every line logged for
+    // them from the moment they subscribe, including lines appended to the text logs by other
+    // processes, with a bounded buffer per subscriber (see EnergyDataTail)
+    public Flow.Publisher<EnergyLogLine> tail(Collection<String> equipmentNames) {
+        return tail().publisher(equipmentNames);
+    }
+
+    public Flow.Publisher<EnergyLogLine> tail(String... equipmentNames) {
+        return tail(List.of(equipmentNames));
+    }
+
+    private synchronized EnergyDataTail tail() {
+        if (tail == null) {
+            tail = new EnergyDataTail(logDirectory);
         }
+        return tail;
+    }
+
+    // Tell the tail about a logged reading: text logs are read from the file, so nothing is
+    // delivered twice; binary readings are delivered as they are
+    private void tailAppended(String equipmentName, EnergyReading reading) {
+        EnergyDataTail current = tail;
+        if (current == null) {
+            return;
+        }
+        if (format == StorageFormat.BINARY) {
+            current.publish(equipmentName, reading.getLine());
+        } else {
+            current.changed(equipmentName);
+        }
+    }
+
+    private void tailAppended(String equipmentName, long[] timestampsMillis, double[] values, int offset, int length) {
+        EnergyDataTail current = tail;
+        if (current == null || !current.isFollowing(equipmentName)) {
+            return;
+        }
+        if (format == StorageFormat.BINARY) {
+            for (int i = offset; i < offset + length; i++) {
+                current.publish(equipmentName, new EnergyReading(timestampsMillis[i], values[i], null).getLine());
+            }
+        } else {
+            current.changed(equipmentName);
+        }
+    }
+
+    // The reading in the energy data. Data without a leading timestamp is stamped with the
+    // current time; its value is the first number in it.
+    private static EnergyReading stamp(String energyData) {
+        EnergyReading reading = EnergyReading.parse(energyData);
+        return reading != null ? reading : EnergyReading.parse(System.currentTimeMillis() + " " + energyData);
+    }
+
+    // Store a reading in the equipment's binary segment
+    private void appendReading(String equipmentName, EnergyReading reading) throws EMSException {
+        try {
+            segment(equipmentName).append(reading.getTimestampMillis(), reading.getValue());
+        } catch (IOException e) {
+            throw new EMSFileWriteException("Error writing energy data for " + equipmentName, e);
+        }
+        metadata.logOperation(equipmentName, "Log energy data");
+    }
+
+    private EnergySegment segment(String equipmentName) throws IOException {
+        try {
+            return segments.computeIfAbsent(equipmentName, name -> {
+                try {
+                    return EnergySegment.open(segmentPath(name));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // The directory holding the equipment's logs, manifest and binary segment (see LogLayout)
+    private Path logDirPath(String equipmentName) {
+        return LogLayout.of(logDirectory).directoryFor(equipmentName + EnergyLogManifest.LOG_EXTENSION);
+    }
+
+    // The text log files of an equipment that may hold readings in [fromMillis, toMillis), oldest
+    // first: the rotated segments whose span overlaps the range, then the active <equipment>.log
+    private List<Path> logFiles(String equipmentName, long fromMillis, long toMillis) throws IOException {
+        List<Path> files = new ArrayList<>(EnergyLogManifest.of(logDirPath(equipmentName), equipmentName).segmentFiles(fromMillis, toMillis));
+        files.removeIf(Files::notExists);
+        return files;
+    }
+
+    // The lines of the given log files, one file after the other
+    private static Stream<String> lines(List<Path> files) {
+        return files.stream().flatMap(file -> {
+            try {
+                return Files.lines(file, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private Path segmentPath(String equipmentName) {
+        return LogLayout.of(logDirectory).resolve(equipmentName + EnergySegment.EXTENSION);
+    }
+
+    // Convert the text log of an equipment into its binary segment, replacing an existing segment.
+    // The text log is left in place. Lines that do not start with a timestamp are skipped.
+    public void convertToBinary(String equipmentName) throws EMSException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            writeBinarySegment(equipmentName);
+            succeeded = true;
+        } finally {
+            CONVERT_TO_BINARY.record(start, succeeded);
+        }
+    }
+
+    private void writeBinarySegment(String equipmentName) throws EMSException {
+        Path segmentPath = segmentPath(equipmentName);
+        List<Path> logFiles;
+        try {
+            logFiles = logFiles(equipmentName, Long.MIN_VALUE, Long.MAX_VALUE);
+        } catch (IOException e) {
+            throw new EMSFileReadException("Error reading energy data for " + equipmentName, e);
+        }
+
+        if (logFiles.isEmpty()) {
+            throw new EMSFileNotFoundException("Log file does not exist for: " + equipmentName);
+        }
+        try {
+            // An open segment would keep appending to the replaced file
+            EnergySegment open = segments.remove(equipmentName);
+            if (open != null) {
+                open.close();
+            }
+            long[] counts = EnergySegment.convert(logFiles, segmentPath);
+            long textBytes = 0;
+            for (Path logFile : logFiles) {
+                textBytes += Files.size(logFile);
+            }
+            aggregates.remove(equipmentName); // Rebuilt from the new segment when next used
+            System.out.println("Converted " + counts[0] + " readings for " + equipmentName
+                    + " (" + counts[1] + " lines without a timestamp skipped): "
+                    + textBytes + " bytes of text, " + Files.size(segmentPath) + " bytes binary");
+            metadata.logOperation(equipmentName, "Convert energy data to binary");
+        } catch (IOException e) {
+            throw new EMSFileWriteException("Error converting energy data for " + equipmentName, e);
+        }
+    }
+
+    private synchronized EnergyDataWriter writer() {
+        if (writer == null) {
+            writer = new EnergyDataWriter(logDirectory, metadata, EnergyDataWriter.FsyncPolicy.PER_BATCH);
+        }
+        return writer;
+    }
+
+    // Flush and close the asynchronous writer, if one was started, and complete live tail subscriptions
+    @Override
+    public synchronized void close() {
+        if (writer != null) {
+            writer.close();
+        }
+        if (tail != null) {
+            tail.close();
+        }
+        for (EnergySegment segment : segments.values()) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        segments.clear();
+    }
+
+    // The configured aggregate windows, e.g. "sliding:1h"
+    public List<String> getAggregateWindows() {
+        return windows.stream().map(RollingWindow::getName).toList();
+    }
+
+    // Aggregates of an equipment's readings over every configured window, as of now
+    public List<EnergyAggregate> aggregates(String equipmentName) {
+        return aggregatesOf(equipmentName).aggregates(System.currentTimeMillis());
+    }
+
+    // Aggregates of an equipment's readings over one configured window, as of now
+    public EnergyAggregate aggregate(String equipmentName, String window) {
+        EnergyAggregate aggregate = aggregatesOf(equipmentName).aggregate(window, System.currentTimeMillis());
+        if (aggregate == null) {
+            throw new IllegalArgumentException("No aggregate window " + window + "; configured: " + getAggregateWindows());
+        }
+        return aggregate;
+    }
+
+    // The equipment's rolling aggregates, rebuilt from its stored readings on first use after startup.
+    // The first caller rebuilds outside the map, so the replay never blocks other equipment; callers
+    // arriving meanwhile wait for it. Readings are only logged after this returns, so the replay
+    // cannot count one twice.
+    private RollingAggregates aggregatesOf(String equipmentName) {
+        CompletableFuture<RollingAggregates> pending = new CompletableFuture<>();
+        CompletableFuture<RollingAggregates> existing = aggregates.putIfAbsent(equipmentName, pending);
+        if (existing != null) {
+            return existing.join();
+        }
+        try {
+            pending.complete(rebuildAggregates(equipmentName));
+        } catch (RuntimeException e) {
+            aggregates.remove(equipmentName, pending);
+            pending.completeExceptionally(e);
+            throw e;
+        }
+        return pending.join();
+    }
+
+    // Only readings within the longest window are replayed. Text lines without a timestamp cannot
+    // be placed in time, so they only count when they are logged, not after a restart.
+    private RollingAggregates rebuildAggregates(String equipmentName) {
+        RollingAggregates rolling = new RollingAggregates(windows);
+        long from = System.currentTimeMillis() - rolling.horizonMillis();
+        try {
+            if (format == StorageFormat.BINARY) {
+                if (Files.exists(segmentPath(equipmentName))) {
+                    try (Stream<EnergyReading> readings = segment(equipmentName).readings(from, Long.MAX_VALUE)) {
+                        readings.forEach(reading -> rolling.add(reading.getTimestampMillis(), reading.getValue()));
+                    }
+                }
+            } else {
+                // Rotated segments that ended before the horizon are not read at all
+                try (Stream<String> lines = lines(logFiles(equipmentName, from, Long.MAX_VALUE))) {
+                    lines.map(EnergyReading::parse)
+                            .filter(reading -> reading != null && reading.getTimestampMillis() >= from)
+                            .forEach(reading -> rolling.add(reading.getTimestampMillis(), reading.getValue()));
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // Keep what was read; the aggregates fill up again as readings are logged
+            System.err.println("Error rebuilding aggregates for " + equipmentName + ": " + e.getMessage());
+        }
+        return rolling;
     }
 
     // Retrieve energy data
     public List<String> retrieveEnergyData(String equipmentName) {
+        long start = System.nanoTime();
+        boolean succeeded = false;
         try {
-            // Build the full path
-            String homeDirectory = System.getProperty("user.home");
-            Path logFilePath = Paths.get(homeDirectory, "Documents", logDirectory, equipmentName + ".log");
+            List<String> data = format == StorageFormat.BINARY ? readSegmentLines(equipmentName) : readLogLines(equipmentName);
+            succeeded = true;
+            return data;
+        } catch (EMSException e) {
+            e.printStackTrace();
+            return List.of();
+        } finally {
+            RETRIEVE_ENERGY_DATA.record(start, succeeded);
+        }
+    }
 
-            // Read the file and return the contents
-            if (Files.exists(logFilePath)) {
-                return Files.readAllLines(logFilePath);
-            } else {
+    private List<String> readSegmentLines(String equipmentName) throws EMSException {
+        try (Stream<String> data = streamEnergyData(equipmentName)) {
+            return data.toList();
+        }
+    }
+
+    private List<String> readLogLines(String equipmentName) throws EMSException {
+        try {
+            List<Path> logFiles = logFiles(equipmentName, Long.MIN_VALUE, Long.MAX_VALUE);
+
+            // Read the segments and return their contents, each served from the cache while unchanged;
+            // segments too large to be cached are streamed straight into the result
+            if (logFiles.isEmpty()) {
                 System.out.println("Log file does not exist for: " + equipmentName);
                 return List.of();
             }
+            if (logFiles.size() == 1) {
+                return cache.readLines(logFiles.get(0));
+            }
+            List<String> lines = new ArrayList<>();
+            for (Path logFile : logFiles) {
+                cache.forEachLine(logFile, lines::add);
+            }
+            return lines;
         } catch (IOException e) {
-            e.printStackTrace();
-            return List.of();
+            throw new EMSFileReadException("Error reading energy data for " + equipmentName, e);
+        }
+    }
+
+    // Stream the energy data of an equipment line by line, reading lazily so memory use does not
+    // depend on the file size. The stream holds the file open: use it in try-with-resources.
+    public Stream<String> streamEnergyData(String equipmentName) throws EMSException {
+        if (format == StorageFormat.BINARY) {
+            return streamReadings(equipmentName, Long.MIN_VALUE, Long.MAX_VALUE).map(EnergyReading::getLine);
+        }
+        return streamLogLines(equipmentName, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    // Lines of the log segments that may hold readings in [fromMillis, toMillis), one segment at a time
+    private Stream<String> streamLogLines(String equipmentName, long fromMillis, long toMillis) throws EMSException {
+        try {
+            List<Path> logFiles = logFiles(equipmentName, fromMillis, toMillis);
+            if (logFiles.isEmpty()) {
+                System.out.println("Log file does not exist for: " + equipmentName);
+                return Stream.empty();
+            }
+            return lines(logFiles);
+        } catch (IOException e) {
+            throw new EMSFileReadException("Error reading energy data for " + equipmentName, e);
+        }
+    }
+
+    // Stream the readings whose timestamp lies in [from, to), at most limit of them. A null bound is
+    // open; when a bound is given, lines that do not start with a timestamp are skipped.
+    public Stream<String> streamEnergyData(String equipmentName, Instant from, Instant to, long limit) throws EMSException {
+        if (format == StorageFormat.BINARY) {
+            // Only the blocks overlapping the range are decoded
+            long fromMillis = from != null ? from.toEpochMilli() : Long.MIN_VALUE;
+            long toMillis = to != null ? to.toEpochMilli() : Long.MAX_VALUE;
+            return streamReadings(equipmentName, fromMillis, toMillis).limit(limit).map(EnergyReading::getLine);
+        }
+        if (from == null && to == null) {
+            return streamEnergyData(equipmentName).limit(limit);
+        }
+        // Rotated segments whose span lies outside the range are not opened
+        long fromMillis = from != null ? from.toEpochMilli() : Long.MIN_VALUE + 1;
+        long toMillis = to != null ? to.toEpochMilli() : Long.MAX_VALUE;
+        return streamLogLines(equipmentName, fromMillis, toMillis)
+                .filter(line -> {
+                    long timestamp = EnergyReading.timestampOf(line);
+                    return timestamp != Long.MIN_VALUE && timestamp >= fromMillis && timestamp < toMillis;
+                })
+                .limit(limit);
+    }
+
+    // The last n lines of an equipment's data, oldest first, read backwards from the end of the log
+    public List<String> retrieveLastReadings(String equipmentName, int n) throws EMSException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            List<String> result = readLastReadings(equipmentName, n);
+            succeeded = true;
+            return result;
+        } finally {
+            RETRIEVE_LAST_READINGS.record(start, succeeded);
+        }
+    }
+
+    private List<String> readLastReadings(String equipmentName, int n) throws EMSException {
+        if (format == StorageFormat.BINARY) {
+            if (Files.notExists(segmentPath(equipmentName))) {
+                System.out.println("Energy data does not exist for: " + equipmentName);
+                return List.of();
+            }
+            try {
+                return segment(equipmentName).lastReadings(n).stream().map(EnergyReading::getLine).toList();
+            } catch (IOException e) {
+                throw new EMSFileReadException("Error reading energy data for " + equipmentName, e);
+            }
+        }
+        try {
+            List<Path> logFiles = logFiles(equipmentName, Long.MIN_VALUE, Long.MAX_VALUE);
+            if (logFiles.isEmpty()) {
+                System.out.println("Log file does not exist for: " + equipmentName);
+                return List.of();
+            }
+            // From the active segment back through the rotated ones until enough lines are found
+            List<String> last = new ArrayList<>();
+            for (int i = logFiles.size() - 1; i >= 0 && last.size() < n; i--) {
+                last.addAll(0, EnergyLogReader.lastLines(logFiles.get(i), n - last.size()));
+            }
+            return last;
+        } catch (IOException e) {
+            throw new EMSFileReadException("Error reading energy data for " + equipmentName, e);
         }
     }
-}
 
+    // Readings of an equipment with a timestamp in [fromMillis, toMillis), from its binary segment
+    public Stream<EnergyReading> streamReadings(String equipmentName, long fromMillis, long toMillis) throws EMSException {
+        if (Files.notExists(segmentPath(equipmentName))) {
+            System.out.println("Energy data does not exist for: " + equipmentName);
+            return Stream.empty();
+        }
+        try {
+            return segment(equipmentName).readings(fromMillis, toMillis);
+        } catch (IOException e) {
+            throw new EMSFileReadException("Error reading energy data for " + equipmentName, e);
+        }
+    }
+}
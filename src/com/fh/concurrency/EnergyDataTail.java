@@ -0,0 +1,392 @@
+package com.fh.concurrency;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Live tail of equipment energy logs: subscribers get the lines appended to <equipment>.log from
+// the moment they subscribe, instead of polling and re-reading the log. For every followed
+// equipment the position up to which its active log was delivered is kept, and whatever was
+// appended after it is read when the log changes. Changes are noticed through a WatchService on
+// the log's directory, so appends by other processes are delivered too; appends made through
+// EnergyDataExchange also trigger a read right away. The active log is held open, so when it is
+// rotated away the lines still unread in it are delivered before the new active log is followed
+// (this relies on the file system's file keys; without them a rotation is noticed by the log
+// getting shorter). Readings of the binary format are published by EnergyDataExchange as they
+// are logged.
+// Every subscriber has its own publisher with a bounded buffer and gets only as many lines as it
+// has requested. Lines for a subscriber whose buffer is full are dropped for that subscriber and
+// counted, so a slow subscriber never holds up the others or the writers.
+//   -Dems.tail.buffer=<n>   (lines buffered per subscriber, default 1024)
+public class EnergyDataTail implements AutoCloseable {
+    public static final String BUFFER_PROPERTY = "ems.tail.buffer";
+    private static final OperationMetrics READ = EMSMetrics.operation("energy.tail");
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 1024 * 1024; // A longer line is delivered in pieces
+
+    private final LogLayout layout;
+    private final EMSExecutor executor;
+    private final int bufferSize;
+    private final AtomicLong droppedLines = new AtomicLong();
+
+    // Followed equipment by name, and by the path of its active log for the watcher
+    private final Map<String, Follower> followers = new ConcurrentHashMap<>();
+    private final Map<Path, Follower> followersByPath = new ConcurrentHashMap<>();
+
+    // Guarded by this
+    private WatchService watchService;
+    private Thread watcherThread;
+    private final Map<Path, WatchKey> watchKeys = new HashMap<>();
+    private boolean closed;
+
+    public EnergyDataTail(String logDirectory) {
+        this(logDirectory, EMSExecutor.shared(), Integer.getInteger(BUFFER_PROPERTY, 1024));
+    }
+
+    public EnergyDataTail(String logDirectory, EMSExecutor executor, int bufferSize) {
+        this.layout = LogLayout.of(logDirectory);
+        this.executor = executor;
+        this.bufferSize = Math.max(1, bufferSize);
+    }
+
+    // A publisher of the lines appended to the logs of the given equipment
+    public Flow.Publisher<EnergyLogLine> publisher(Collection<String> equipmentNames) {
+        List<String> names = List.copyOf(new LinkedHashSet<>(equipmentNames));
+        return subscriber -> subscribe(names, subscriber);
+    }
+
+    // Lines dropped because a subscriber's buffer was full
+    public long getDroppedLines() {
+        return droppedLines.get();
+    }
+
+    private void subscribe(List<String> equipmentNames, Flow.Subscriber<? super EnergyLogLine> subscriber) {
+        SubmissionPublisher<EnergyLogLine> publisher = new SubmissionPublisher<>(executor, bufferSize);
+        publisher.subscribe(new CancellableSubscriber(subscriber, () -> unsubscribe(equipmentNames, publisher)));
+        try {
+            for (String equipmentName : equipmentNames) {
+                follow(equipmentName, publisher);
+            }
+        } catch (IOException | RuntimeException e) {
+            publisher.closeExceptionally(new EMSResourceException("Unable to follow energy data of " + equipmentNames, e));
+            unsubscribe(equipmentNames, publisher);
+        }
+    }
+
+    // Detach a cancelled or failed subscription, and stop following what nobody subscribes to any more
+    private synchronized void unsubscribe(List<String> equipmentNames, SubmissionPublisher<EnergyLogLine> publisher) {
+        publisher.close();
+        for (String equipmentName : equipmentNames) {
+            Follower follower = followers.get(equipmentName);
+            if (follower != null) {
+                follower.subscribers.remove(publisher);
+                unfollowIfUnused(follower);
+            }
+        }
+    }
+
+    // Add the publisher to the follower of an equipment, starting one at the current end of its
+    // active log if there is none. Both happen under this lock, so the follower cannot be
+    // stopped for lack of subscribers in between.
+    private synchronized void follow(String equipmentName, SubmissionPublisher<EnergyLogLine> publisher) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Energy data tail is closed");
+        }
+        if (publisher.isClosed()) {
+            return; // Cancelled before it was attached
+        }
+        Follower follower = followers.get(equipmentName);
+        if (follower != null) {
+            follower.subscribers.add(publisher);
+            return;
+        }
+        Path activePath = layout.resolve(equipmentName + EnergyLogManifest.LOG_EXTENSION);
+        Path directory = activePath.getParent();
+        Files.createDirectories(directory);
+        if (watchService == null) {
+            watchService = directory.getFileSystem().newWatchService();
+            watcherThread = new Thread(this::watchDirectories, "energy-tail-watcher");
+            watcherThread.setDaemon(true);
+            watcherThread.start();
+        }
+        if (!watchKeys.containsKey(directory)) {
+            watchKeys.put(directory, directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY));
+        }
+        follower = new Follower(equipmentName, activePath);
+        follower.open(true);
+        follower.subscribers.add(publisher);
+        followers.put(equipmentName, follower);
+        followersByPath.put(activePath, follower);
+    }
+
+    // Stop following an equipment nobody subscribes to any more. Not called holding the
+    // follower's lock, which is taken after this one.
+    private synchronized void unfollowIfUnused(Follower follower) {
+        if (!follower.subscribers.isEmpty() || followers.get(follower.equipmentName) != follower) {
+            return;
+        }
+        followers.remove(follower.equipmentName);
+        followersByPath.remove(follower.activePath);
+        follower.close();
+        Path directory = follower.activePath.getParent();
+        if (followers.values().stream().noneMatch(other -> other.activePath.getParent().equals(directory))) {
+            WatchKey key = watchKeys.remove(directory);
+            if (key != null) {
+                key.cancel();
+            }
+        }
+    }
+
+    boolean isFollowing(String equipmentName) {
+        return followers.containsKey(equipmentName);
+    }
+
+    // Lines were appended to the equipment's active log: read them soon on the executor. Requests
+    // made while a read is pending are covered by it.
+    void changed(String equipmentName) {
+        Follower follower = followers.get(equipmentName);
+        if (follower != null) {
+            follower.schedule();
+        }
+    }
+
+    // Deliver lines that did not go through a text log, e.g. readings of the binary format
+    void publish(String equipmentName, String line) {
+        Follower follower = followers.get(equipmentName);
+        if (follower != null) {
+            follower.deliver(line);
+            unfollowIfUnused(follower);
+        }
+    }
+
+    // Watcher loop: a change of a followed active log schedules a read of it
+    private void watchDirectories() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                WatchKey key = watchService.poll(1, TimeUnit.SECONDS);
+                if (key == null) {
+                    continue;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        followers.values().forEach(Follower::schedule);
+                        continue;
+                    }
+                    Follower follower = followersByPath.get(((Path) key.watchable()).resolve((Path) event.context()));
+                    if (follower != null) {
+                        follower.schedule();
+                    }
+                }
+                key.reset();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+        }
+    }
+
+    // Complete every subscription and stop watching
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (watcherThread != null) {
+            watcherThread.interrupt();
+        }
+        try {
+            if (watchService != null) {
+                watchService.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing energy data tail: " + e.getMessage());
+        }
+        for (Follower follower : followers.values()) {
+            follower.subscribers.forEach(SubmissionPublisher::close);
+            follower.close();
+        }
+        followers.clear();
+        followersByPath.clear();
+    }
+
+    // Reads what was appended to one equipment's active log and delivers it line by line
+    private final class Follower {
+        final String equipmentName;
+        final Path activePath;
+        final List<SubmissionPublisher<EnergyLogLine>> subscribers = new CopyOnWriteArrayList<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        // Guarded by this
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+        private FileChannel channel;
+        private Object fileKey;
+        private long position;
+
+        Follower(String equipmentName, Path activePath) {
+            this.equipmentName = equipmentName;
+            this.activePath = activePath;
+        }
+
+        // Open the active log, at its end or, for a log that replaced a rotated one, at its start
+        synchronized void open(boolean atEnd) throws IOException {
+            try {
+                channel = FileChannel.open(activePath, StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                channel = null; // Followed from its start once it is created
+                position = 0;
+                return;
+            }
+            fileKey = Files.readAttributes(activePath, BasicFileAttributes.class).fileKey();
+            position = atEnd ? channel.size() : 0;
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(() -> {
+                    scheduled.set(false);
+                    long start = System.nanoTime();
+                    boolean succeeded = false;
+                    try {
+                        read();
+                        succeeded = true;
+                    } catch (IOException e) {
+                        System.err.println("Error following energy data of " + equipmentName + ": " + e.getMessage());
+                    } finally {
+                        READ.record(start, succeeded);
+                    }
+                    unfollowIfUnused(this);
+                });
+            }
+        }
+
+        synchronized void read() throws IOException {
+            if (channel != null) {
+                readToEnd();
+            }
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(activePath, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                return; // Rotated away and not created again yet
+            }
+            boolean replaced = channel == null
+                    || (fileKey != null ? !fileKey.equals(attributes.fileKey()) : attributes.size() < position);
+            if (replaced) {
+                // Everything of the rotated log was read above; the new one is read from its start
+                close();
+                open(false);
+                if (channel != null) {
+                    readToEnd();
+                }
+            }
+        }
+
+        private void readToEnd() throws IOException {
+            int read;
+            while ((read = channel.read(buffer.clear(), position)) > 0) {
+                position += read;
+                byte[] bytes = buffer.array();
+                int lineStart = 0;
+                for (int i = 0; i < read; i++) {
+                    if (bytes[i] == '\n') {
+                        partialLine.write(bytes, lineStart, i - lineStart);
+                        deliverPartialLine();
+                        lineStart = i + 1;
+                    }
+                }
+                partialLine.write(bytes, lineStart, read - lineStart);
+                if (partialLine.size() >= MAX_LINE_LENGTH) {
+                    deliverPartialLine();
+                }
+            }
+        }
+
+        private void deliverPartialLine() {
+            String line = partialLine.toString(StandardCharsets.UTF_8);
+            partialLine.reset();
+            deliver(line.endsWith("\r") ? line.substring(0, line.length() - 1) : line);
+        }
+
+        // Offer the line to every subscriber without waiting for any of them
+        void deliver(String line) {
+            EnergyLogLine item = new EnergyLogLine(equipmentName, line);
+            for (SubmissionPublisher<EnergyLogLine> subscriber : subscribers) {
+                if (!subscriber.isClosed() && subscriber.hasSubscribers()) {
+                    subscriber.offer(item, (ignored, dropped) -> {
+                        droppedLines.incrementAndGet();
+                        return false;
+                    });
+                }
+                // Normally removed by unsubscribe when cancelled; this covers a subscriber that failed
+                if (subscriber.isClosed() || !subscriber.hasSubscribers()) {
+                    subscribers.remove(subscriber);
+                }
+            }
+        }
+
+        synchronized void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing energy log of " + equipmentName + ": " + e.getMessage());
+                }
+                channel = null;
+            }
+        }
+    }
+
+    // Passes everything on to the subscriber and runs an action when it cancels its subscription,
+    // so a cancelled subscription is detached at once instead of when the next line arrives
+    private static final class CancellableSubscriber implements Flow.Subscriber<EnergyLogLine> {
+        private final Flow.Subscriber<? super EnergyLogLine> subscriber;
+        private final Runnable onCancel;
+
+        CancellableSubscriber(Flow.Subscriber<? super EnergyLogLine> subscriber, Runnable onCancel) {
+            this.subscriber = subscriber;
+            this.onCancel = onCancel;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    subscription.request(n);
+                }
+
+                @Override
+                public void cancel() {
+                    subscription.cancel();
+                    onCancel.run();
+                }
+            });
+        }
+
+        @Override
+        public void onNext(EnergyLogLine line) {
+            subscriber.onNext(line);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            subscriber.onError(error);
+        }
+
+        @Override
+        public void onComplete() {
+            subscriber.onComplete();
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package com.fh.concurrency;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Asynchronous group-commit writer for energy readings. Callers enqueue readings into a bounded
+// queue and get a future back; a single writer thread drains the queue in batches, appends each
+// equipment's readings with one gathering write to a FileChannel it keeps open, and completes
+// the futures once the data is as durable as the fsync policy requires. Appends go through the
+// equipment's EnergyLogManifest, which rotates the log into segments; the channel is reopened
+// after a rotation. Readings of the binary format are queued the same way and appended to the
+// equipment's EnergySegment a batch at a time, forced by the same policy.
+public class EnergyDataWriter implements AutoCloseable {
+
+    // When readings are forced to disk before their futures complete
+    public enum FsyncPolicy {
+        NONE,       // Complete once written to the OS; the OS decides when to flush
+        PER_BATCH,  // Force every file touched by a batch before completing it
+        INTERVAL    // Force at most once per interval; futures complete after that force
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 8192;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+    public static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 100;
+
+    private static final long OFFER_TIMEOUT_MILLIS = 100; // How often a blocked submitter checks the writer is still running
+    private static final Reading SHUTDOWN = new Reading(null, null, Long.MIN_VALUE, null, null, 0);
+
+    private final LogLayout layout;
+    private final Metadata metadata;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMillis;
+    private final int maxBatchSize;
+    private final BlockingQueue<Reading> queue;
+    private final Thread writerThread;
+    // Submitters enqueue holding the read lock and close() sets closed holding the write lock, so
+    // every reading accepted before the shutdown marker is queued ahead of it. The writer thread
+    // sets closed the same way when it stops, so nothing is accepted that it would never write.
+    private final ReadWriteLock lifecycle = new ReentrantReadWriteLock();
+    private boolean closed; // Guarded by lifecycle
+    private volatile boolean stopped; // Set when the writer thread exits; a submitter waiting on a full queue gives up
+
+    // Only touched by the writer thread
+    private final Map<String, FileChannel> channels = new HashMap<>();
+    private final Map<String, Long> channelGenerations = new HashMap<>(); // Manifest generation each channel was opened in
+    private final Set<FileChannel> unsyncedChannels = new HashSet<>();
+    private final Set<EnergySegment> unsyncedSegments = new HashSet<>();
+    private final List<CompletableFuture<Void>> awaitingSync = new ArrayList<>();
+    private long lastSyncMillis = System.currentTimeMillis();
+
+    public EnergyDataWriter(String logDirectory, Metadata metadata, FsyncPolicy fsyncPolicy) {
+        this(logDirectory, metadata, fsyncPolicy, DEFAULT_FSYNC_INTERVAL_MILLIS, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    public EnergyDataWriter(String logDirectory, Metadata metadata, FsyncPolicy fsyncPolicy,
+                            long fsyncIntervalMillis, int queueCapacity, int maxBatchSize) {
+        this.layout = LogLayout.of(logDirectory);
+        this.metadata = metadata;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        this.writerThread = new Thread(this::writeLoop, "energy-data-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    // Queue a reading; blocks while the queue is full. The future completes when the reading is durable
+    // according to the fsync policy, and fails at once if the writer is closed or has stopped. It is
+    // completed on the writer thread, so use the *Async variants for anything slow that depends on it.
+    public CompletableFuture<Void> submit(String equipmentName, String energyData) {
+        byte[] bytes = (energyData + "\n").getBytes(StandardCharsets.UTF_8);
+        return enqueue(new Reading(equipmentName, bytes, EnergyReading.timestampOf(energyData), new CompletableFuture<>(), null, 0));
+    }
+
+    // Queue a reading for the equipment's binary segment, like submit
+    CompletableFuture<Void> submit(String equipmentName, EnergySegment segment, long timestampMillis, double value) {
+        return enqueue(new Reading(equipmentName, null, timestampMillis, new CompletableFuture<>(), segment, value));
+    }
+
+    private CompletableFuture<Void> enqueue(Reading reading) {
+        CompletableFuture<Void> durable = reading.durable;
+        lifecycle.readLock().lock();
+        try {
+            if (closed) {
+                durable.completeExceptionally(new EMSException("Energy data writer is closed"));
+                return durable;
+            }
+            while (!queue.offer(reading, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (stopped) {
+                    durable.completeExceptionally(new EMSException("Energy data writer stopped"));
+                    return durable;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            durable.completeExceptionally(e);
+        } finally {
+            lifecycle.readLock().unlock();
+        }
+        return durable;
+    }
+
+    // Write everything still queued, force it to disk and close all files
+    @Override
+    public void close() {
+        lifecycle.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            lifecycle.writeLock().unlock();
+        }
+        try {
+            // A writer that already stopped takes nothing from the queue, so stop offering then
+            boolean queued = false;
+            while (!queued && writerThread.isAlive()) {
+                queued = queue.offer(SHUTDOWN, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<Reading> batch = new ArrayList<>(maxBatchSize);
+        boolean running = true;
+        try {
+            while (running) {
+                try {
+                    Reading first = fsyncPolicy == FsyncPolicy.INTERVAL
+                            ? queue.poll(fsyncIntervalMillis, TimeUnit.MILLISECONDS)
+                            : queue.take();
+                    if (first != null) {
+                        batch.add(first);
+                        queue.drainTo(batch, maxBatchSize - 1);
+                    }
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+
+                if (batch.remove(SHUTDOWN)) {
+                    // Readings queued behind the shutdown marker are still written
+                    queue.drainTo(batch);
+                    running = false;
+                }
+                writeBatch(batch);
+                batch.clear();
+                syncIfDue(!running);
+            }
+        } finally {
+            closeChannels();
+            stop(batch);
+        }
+    }
+
+    // Refuse further readings and fail the ones left behind; only there when the writer thread was
+    // interrupted or failed, and their callers must not wait forever
+    private void stop(List<Reading> batch) {
+        stopped = true; // Releases submitters waiting on a full queue, so the write lock can be taken
+        lifecycle.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            lifecycle.writeLock().unlock();
+        }
+        queue.drainTo(batch);
+        EMSException failure = new EMSException("Energy data writer stopped before the reading was written");
+        for (Reading reading : batch) {
+            if (reading != SHUTDOWN) {
+                reading.durable.completeExceptionally(failure);
+            }
+        }
+        awaitingSync.forEach(durable -> durable.completeExceptionally(failure));
+        awaitingSync.clear();
+    }
+
+    // Group the batch by equipment and append each group with one write
+    private void writeBatch(List<Reading> batch) {
+        Map<String, List<Reading>> byEquipment = new LinkedHashMap<>();
+        for (Reading reading : batch) {
+            byEquipment.computeIfAbsent(reading.equipmentName, name -> new ArrayList<>()).add(reading);
+        }
+
+        for (Map.Entry<String, List<Reading>> group : byEquipment.entrySet()) {
+            List<Reading> lines = new ArrayList<>();
+            Map<EnergySegment, List<Reading>> bySegment = new LinkedHashMap<>();
+            for (Reading reading : group.getValue()) {
+                if (reading.segment == null) {
+                    lines.add(reading);
+                } else {
+                    bySegment.computeIfAbsent(reading.segment, segment -> new ArrayList<>()).add(reading);
+                }
+            }
+            if (!lines.isEmpty()) {
+                writeLines(group.getKey(), lines);
+            }
+            for (Map.Entry<EnergySegment, List<Reading>> readings : bySegment.entrySet()) {
+                writeReadings(group.getKey(), readings.getKey(), readings.getValue());
+            }
+        }
+    }
+
+    // Append text readings to the equipment's active log with one gathering write
+    private void writeLines(String equipmentName, List<Reading> readings) {
+        try {
+            ByteBuffer[] buffers = new ByteBuffer[readings.size()];
+            long remaining = 0;
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = ByteBuffer.wrap(readings.get(i).bytes);
+                remaining += buffers[i].remaining();
+            }
+            EnergyLogManifest manifest = EnergyLogManifest.of(layout.directoryFor(equipmentName + EnergyLogManifest.LOG_EXTENSION), equipmentName);
+            FileChannel channel;
+            synchronized (manifest) {
+                manifest.prepareAppend(remaining);
+                channel = channelFor(equipmentName, manifest);
+                while (remaining > 0) {
+                    remaining -= channel.write(buffers);
+                }
+                for (Reading reading : readings) {
+                    manifest.appended(reading.bytes.length, 1, reading.timestampMillis);
+                }
+            }
+
+            if (fsyncPolicy == FsyncPolicy.PER_BATCH) {
+                channel.force(false);
+            }
+            if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+                unsyncedChannels.add(channel);
+                readings.forEach(reading -> awaitingSync.add(reading.durable));
+            } else {
+                readings.forEach(reading -> reading.durable.complete(null));
+            }
+
+            // One metadata entry per equipment and batch instead of one per reading
+            metadata.logOperation(equipmentName, "Log energy data (" + readings.size() + " readings)");
+        } catch (IOException e) {
+            EMSException failure = new EMSFileWriteException("Error writing energy data for " + equipmentName, e);
+            readings.forEach(reading -> reading.durable.completeExceptionally(failure));
+            closeChannel(equipmentName);
+        }
+    }
+
+    // Append binary readings to their segment in one call and force it as the policy requires
+    private void writeReadings(String equipmentName, EnergySegment segment, List<Reading> readings) {
+        long[] timestamps = new long[readings.size()];
+        double[] values = new double[readings.size()];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = readings.get(i).timestampMillis;
+            values[i] = readings.get(i).value;
+        }
+        try {
+            segment.append(timestamps, values, 0, timestamps.length);
+            if (fsyncPolicy == FsyncPolicy.PER_BATCH) {
+                segment.force();
+            }
+            if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+                unsyncedSegments.add(segment);
+                readings.forEach(reading -> awaitingSync.add(reading.durable));
+            } else {
+                readings.forEach(reading -> reading.durable.complete(null));
+            }
+            metadata.logOperation(equipmentName, "Log energy data (" + readings.size() + " readings)");
+        } catch (IOException e) {
+            EMSException failure = new EMSFileWriteException("Error writing energy data for " + equipmentName, e);
+            readings.forEach(reading -> reading.durable.completeExceptionally(failure));
+        }
+    }
+
+    // Interval policy: force the files written since the last sync once the interval has passed
+    private void syncIfDue(boolean force) {
+        if (fsyncPolicy != FsyncPolicy.INTERVAL || awaitingSync.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (!force && now - lastSyncMillis < fsyncIntervalMillis) {
+            return;
+        }
+        IOException failure = null;
+        for (FileChannel channel : unsyncedChannels) {
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        for (EnergySegment segment : unsyncedSegments) {
+            try {
+                segment.force();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        for (CompletableFuture<Void> durable : awaitingSync) {
+            if (failure == null) {
+                durable.complete(null);
+            } else {
+                durable.completeExceptionally(new EMSFileWriteException("Error syncing energy data", failure));
+            }
+        }
+        unsyncedChannels.clear();
+        unsyncedSegments.clear();
+        awaitingSync.clear();
+        lastSyncMillis = now;
+    }
+
+    // The channel of the active segment; called holding the manifest's lock
+    private FileChannel channelFor(String equipmentName, EnergyLogManifest manifest) throws IOException {
+        FileChannel channel = channels.get(equipmentName);
+        if (channel != null && channelGenerations.get(equipmentName) != manifest.getGeneration()) {
+            // The file this channel writes to was rotated away
+            closeChannel(equipmentName);
+            channel = null;
+        }
+        if (channel == null) {
+            Path logFilePath = manifest.getActivePath();
+            Files.createDirectories(logFilePath.getParent());
+            channel = FileChannel.open(logFilePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            channels.put(equipmentName, channel);
+            channelGenerations.put(equipmentName, manifest.getGeneration());
+        }
+        return channel;
+    }
+
+    private void closeChannel(String equipmentName) {
+        FileChannel channel = channels.remove(equipmentName);
+        channelGenerations.remove(equipmentName);
+        if (channel != null) {
+            try {
+                // Readings waiting for the interval sync must not lose their force
+                if (unsyncedChannels.remove(channel)) {
+                    channel.force(false);
+                }
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing energy log for " + equipmentName + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void closeChannels() {
+        for (String equipmentName : new ArrayList<>(channels.keySet())) {
+            closeChannel(equipmentName);
+        }
+    }
+
+    // One queued reading: a line already encoded on the caller's thread, or the timestamp and
+    // value of a reading for a binary segment
+    private static class Reading {
+        private final String equipmentName;
+        private final byte[] bytes;
+        private final long timestampMillis; // Long.MIN_VALUE when the line has no timestamp
+        private final CompletableFuture<Void> durable;
+        private final EnergySegment segment; // Null for a text line
+        private final double value;
+
+        Reading(String equipmentName, byte[] bytes, long timestampMillis, CompletableFuture<Void> durable,
+                EnergySegment segment, double value) {
+            this.equipmentName = equipmentName;
+            this.bytes = bytes;
+            this.timestampMillis = timestampMillis;
+            this.durable = durable;
+            this.segment = segment;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.fh.concurrency;
+
+// A line of energy data delivered to a live tail subscriber, with the equipment it belongs to
+public class EnergyLogLine {
+    private final String equipmentName;
+    private final String line;
+
+    public EnergyLogLine(String equipmentName, String line) {
+        this.equipmentName = equipmentName;
+        this.line = line;
+    }
+
+    public String getEquipmentName() {
+        return equipmentName;
+    }
+
+    public String getLine() {
+        return line;
+    }
+
+    @Override
+    public String toString() {
+        return equipmentName + ": " + line;
+    }
+}
@@ -0,0 +1,336 @@
+package com.fh.concurrency;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Rotation of an equipment's text log into bounded segments, and the manifest recording them.
+// Readings are appended to <equipment>.log, the active segment. When it would grow past the
+// size limit, or has been written to for longer than the interval, it is renamed to
+// <equipment>.<sequence>.log and recorded in <equipment>.manifest with the time span of its
+// timestamped readings, its size and its line count. Readers use the spans to skip segments
+// outside a time range, and the archiver to archive whole segments by the age of their data.
+//   -Dems.rotation.bytes=<n>     (rotate before the active segment exceeds n bytes, default 64 MB, 0 = never)
+//   -Dems.rotation.minutes=<n>   (rotate once the active segment is n minutes old, default 0 = never)
+// There is one instance per equipment log in the process. Writers append to the active segment
+// while holding its lock, so a rotation never happens in the middle of a write.
+class EnergyLogManifest {
+    public static final String ROTATION_BYTES_PROPERTY = "ems.rotation.bytes";
+    public static final String ROTATION_MINUTES_PROPERTY = "ems.rotation.minutes";
+    static final String EXTENSION = ".manifest";
+    static final String LOG_EXTENSION = ".log";
+    private static final int SEQUENCE_DIGITS = 6;
+
+    private static final Map<Path, EnergyLogManifest> manifests = new ConcurrentHashMap<>();
+
+    private final Path logDirPath;
+    private final String equipmentName;
+    private final Path activePath;
+    private final Path manifestPath;
+    private final long maxBytes;
+    private final long intervalMillis;
+    private final List<Segment> segments = new ArrayList<>(); // Sealed segments, oldest first
+    private int nextSequence = 1;
+    private long generation; // Incremented by every rotation, so writers know to reopen the active segment
+
+    // The active segment as last seen by this process; loaded on the first append
+    private boolean activeLoaded;
+    private long activeBytes;
+    private long activeLines;
+    private long activeFrom = Long.MAX_VALUE;
+    private long activeTo = Long.MIN_VALUE;
+    private long activeSince;
+
+    private EnergyLogManifest(Path logDirPath, String equipmentName) {
+        this.logDirPath = logDirPath;
+        this.equipmentName = equipmentName;
+        this.activePath = logDirPath.resolve(equipmentName + LOG_EXTENSION);
+        this.manifestPath = logDirPath.resolve(equipmentName + EXTENSION);
+        this.maxBytes = Long.getLong(ROTATION_BYTES_PROPERTY, 64L * 1024 * 1024);
+        this.intervalMillis = TimeUnit.MINUTES.toMillis(Long.getLong(ROTATION_MINUTES_PROPERTY, 0));
+    }
+
+    // The manifest of an equipment's log, loaded from disk on first use
+    static EnergyLogManifest of(Path logDirPath, String equipmentName) throws IOException {
+        Path key = logDirPath.resolve(equipmentName + LOG_EXTENSION).toAbsolutePath().normalize();
+        try {
+            return manifests.computeIfAbsent(key, path -> {
+                EnergyLogManifest manifest = new EnergyLogManifest(logDirPath, equipmentName);
+                try {
+                    manifest.load();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return manifest;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // The manifests of every equipment in the log directory that has rotated its log
+    static List<EnergyLogManifest> all(Path logDirPath) throws IOException {
+        List<EnergyLogManifest> all = new ArrayList<>();
+        if (Files.isDirectory(logDirPath)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(logDirPath, "*" + EXTENSION)) {
+                for (Path file : stream) {
+                    String name = file.getFileName().toString();
+                    all.add(of(logDirPath, name.substring(0, name.length() - EXTENSION.length())));
+                }
+            }
+        }
+        return all;
+    }
+
+    private void load() throws IOException {
+        if (Files.exists(manifestPath)) {
+            for (String line : Files.readAllLines(manifestPath, StandardCharsets.UTF_8)) {
+                if (!line.isBlank() && !line.startsWith("#")) {
+                    segments.add(Segment.parse(line));
+                }
+            }
+        }
+        for (Segment segment : segments) {
+            nextSequence = Math.max(nextSequence, sequenceOf(segment.fileName) + 1);
+        }
+        // A segment renamed just before a crash, before the manifest was written
+        boolean recovered = false;
+        if (Files.isDirectory(logDirPath)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(logDirPath, equipmentName + ".*" + LOG_EXTENSION)) {
+                for (Path file : stream) {
+                    String fileName = file.getFileName().toString();
+                    int sequence = sequenceOf(fileName);
+                    if (sequence >= nextSequence) {
+                        segments.add(scan(file));
+                        nextSequence = sequence + 1;
+                        recovered = true;
+                    }
+                }
+            }
+        }
+        if (recovered) {
+            segments.sort((a, b) -> Integer.compare(sequenceOf(a.fileName), sequenceOf(b.fileName)));
+            save();
+        }
+    }
+
+    // Sequence number of a sealed segment file name, or 0 if it is not one of this equipment's
+    private int sequenceOf(String fileName) {
+        String prefix = equipmentName + ".";
+        if (!fileName.startsWith(prefix) || !fileName.endsWith(LOG_EXTENSION)) {
+            return 0;
+        }
+        String sequence = fileName.substring(prefix.length(), fileName.length() - LOG_EXTENSION.length());
+        if (sequence.length() != SEQUENCE_DIGITS || !sequence.chars().allMatch(Character::isDigit)) {
+            return 0;
+        }
+        return Integer.parseInt(sequence);
+    }
+
+    Path getActivePath() {
+        return activePath;
+    }
+
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    // Called by a writer, holding this manifest's lock, before it appends the given number of
+    // bytes; rotates the active segment first if the append would exceed the limits
+    synchronized Path prepareAppend(long bytes) throws IOException {
+        long size = Files.exists(activePath) ? Files.size(activePath) : 0;
+        if (!activeLoaded || size != activeBytes) {
+            // First append, or the file was changed by someone else (archived, moved, truncated)
+            if (activeLoaded) {
+                generation++; // Writers holding the old file open reopen it
+            }
+            loadActive(size);
+        }
+        boolean full = maxBytes > 0 && activeBytes > 0 && activeBytes + bytes > maxBytes;
+        boolean expired = intervalMillis > 0 && activeBytes > 0 && System.currentTimeMillis() - activeSince >= intervalMillis;
+        if (full || expired) {
+            rotate();
+        }
+        if (activeBytes == 0) {
+            activeSince = System.currentTimeMillis();
+        }
+        return activePath;
+    }
+
+    // Called by a writer, still holding the lock, after appending lines to the active segment;
+    // timestampMillis is Long.MIN_VALUE for a line without a timestamp
+    synchronized void appended(long bytes, long lines, long timestampMillis) {
+        appended(bytes, lines, timestampMillis, timestampMillis);
+    }
+
+    // The same for lines with timestamps from fromMillis to toMillis
+    synchronized void appended(long bytes, long lines, long fromMillis, long toMillis) {
+        activeBytes += bytes;
+        activeLines += lines;
+        if (fromMillis != Long.MIN_VALUE) {
+            activeFrom = Math.min(activeFrom, fromMillis);
+            activeTo = Math.max(activeTo, toMillis);
+        }
+    }
+
+    private void loadActive(long size) throws IOException {
+        activeLoaded = true;
+        if (size == 0) {
+            activeBytes = 0;
+            activeLines = 0;
+            activeFrom = Long.MAX_VALUE;
+            activeTo = Long.MIN_VALUE;
+            return;
+        }
+        Segment active = scan(activePath);
+        activeBytes = active.bytes;
+        activeLines = active.lines;
+        activeFrom = active.fromMillis;
+        activeTo = active.toMillis;
+        activeSince = Files.readAttributes(activePath, BasicFileAttributes.class).creationTime().toMillis();
+    }
+
+    // Seal the active segment under the next sequence number and start a new one
+    private void rotate() throws IOException {
+        String fileName = String.format("%s.%0" + SEQUENCE_DIGITS + "d%s", equipmentName, nextSequence, LOG_EXTENSION);
+        Files.move(activePath, logDirPath.resolve(fileName), StandardCopyOption.ATOMIC_MOVE);
+        segments.add(new Segment(fileName, activeFrom, activeTo, activeBytes, activeLines, false));
+        nextSequence++;
+        generation++;
+        save();
+        activeBytes = 0;
+        activeLines = 0;
+        activeFrom = Long.MAX_VALUE;
+        activeTo = Long.MIN_VALUE;
+        LogCache.shared().invalidate(activePath);
+        // The sealed segment no longer changes; index it for content searches off the write path
+        LogBloomFilter.buildAsync(logDirPath.resolve(fileName));
+    }
+
+    // The files holding readings that may lie in [fromMillis, toMillis), oldest first: the sealed
+    // segments whose span overlaps the range, then the active segment. Archived segments are left out.
+    synchronized List<Path> segmentFiles(long fromMillis, long toMillis) {
+        List<Path> files = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (!segment.archived && segment.overlaps(fromMillis, toMillis)) {
+                files.add(logDirPath.resolve(segment.fileName));
+            }
+        }
+        files.add(activePath);
+        return files;
+    }
+
+    synchronized List<Segment> sealedSegments() {
+        return new ArrayList<>(segments);
+    }
+
+    // Record that a sealed segment was moved to the archive
+    synchronized void archived(String fileName) throws IOException {
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            if (segment.fileName.equals(fileName) && !segment.archived) {
+                segments.set(i, new Segment(segment.fileName, segment.fromMillis, segment.toMillis, segment.bytes, segment.lines, true));
+                save();
+                return;
+            }
+        }
+    }
+
+    // Written to a temporary file and moved into place, so a crash leaves the old or the new manifest
+    private void save() throws IOException {
+        StringBuilder content = new StringBuilder("# segment fromMillis toMillis bytes lines archived\n");
+        for (Segment segment : segments) {
+            content.append(segment).append('\n');
+        }
+        Path tempPath = manifestPath.resolveSibling(manifestPath.getFileName() + ".tmp");
+        Files.writeString(tempPath, content, StandardCharsets.UTF_8);
+        Files.move(tempPath, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Span, size and line count of a segment file, read line by line
+    private static Segment scan(Path file) throws IOException {
+        long from = Long.MAX_VALUE;
+        long to = Long.MIN_VALUE;
+        long lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                long timestamp = EnergyReading.timestampOf(line);
+                if (timestamp != Long.MIN_VALUE) {
+                    from = Math.min(from, timestamp);
+                    to = Math.max(to, timestamp);
+                }
+            }
+        }
+        return new Segment(file.getFileName().toString(), from, to, Files.size(file), lines, false);
+    }
+
+    // A sealed segment; a segment without timestamped readings has an empty span
+    static final class Segment {
+        final String fileName;
+        final long fromMillis;
+        final long toMillis;
+        final long bytes;
+        final long lines;
+        final boolean archived;
+
+        Segment(String fileName, long fromMillis, long toMillis, long bytes, long lines, boolean archived) {
+            this.fileName = fileName;
+            this.fromMillis = fromMillis;
+            this.toMillis = toMillis;
+            this.bytes = bytes;
+            this.lines = lines;
+            this.archived = archived;
+        }
+
+        // The five numeric fields are taken from the end of the entry, so the file name before them
+        // may itself contain spaces (an equipment named "Solar Panel")
+        static Segment parse(String line) throws IOException {
+            String entry = line.stripTrailing();
+            String[] fields = new String[6];
+            int end = entry.length();
+            for (int field = 5; field > 0; field--) {
+                int space = entry.lastIndexOf(' ', end - 1);
+                if (space <= 0) {
+                    throw new IOException("Invalid manifest entry: " + line);
+                }
+                fields[field] = entry.substring(space + 1, end);
+                end = space;
+            }
+            fields[0] = entry.substring(0, end);
+            try {
+                return new Segment(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                        Long.parseLong(fields[3]), Long.parseLong(fields[4]), fields[5].equals("1"));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid manifest entry: " + line, e);
+            }
+        }
+
+        boolean hasSpan() {
+            return fromMillis <= toMillis;
+        }
+
+        // An unbounded range covers every segment, including those without timestamped readings
+        boolean overlaps(long rangeFrom, long rangeTo) {
+            if (rangeFrom == Long.MIN_VALUE && rangeTo == Long.MAX_VALUE) {
+                return true;
+            }
+            return hasSpan() && toMillis >= rangeFrom && fromMillis < rangeTo;
+        }
+
+        // Fields separated by single spaces, the file name first and verbatim
+        @Override
+        public String toString() {
+            return fileName + " " + fromMillis + " " + toMillis + " " + bytes + " " + lines + " " + (archived ? 1 : 0);
+        }
+    }
+}
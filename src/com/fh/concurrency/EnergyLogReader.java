@@ -0,0 +1,82 @@
+package com.fh.concurrency;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Reads the end of an equipment log without touching the rest of it: the file is memory-mapped
+// in windows from the end backwards until enough lines have been found.
+class EnergyLogReader {
+    private static final int WINDOW_SIZE = 1024 * 1024;
+
+    private EnergyLogReader() {
+    }
+
+    // The last n lines of the file, oldest first
+    static List<String> lastLines(Path file, int n) throws IOException {
+        if (n <= 0) {
+            return List.of();
+        }
+        List<String> newestFirst = new ArrayList<>(Math.min(n, 1024));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long end = channel.size();
+            // The newline that terminates the last line does not start another line
+            if (end > 0 && byteAt(channel, end - 1) == '\n') {
+                end--;
+            }
+            long window = WINDOW_SIZE;
+
+            while (newestFirst.size() < n && end > 0) {
+                long windowStart = Math.max(0, end - window);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, end - windowStart);
+                int lineEnd = (int) (end - windowStart);
+                boolean foundLine = false;
+
+                for (int i = lineEnd - 1; i >= 0 && newestFirst.size() < n; i--) {
+                    if (buffer.get(i) == '\n') {
+                        newestFirst.add(decode(buffer, i + 1, lineEnd));
+                        lineEnd = i;
+                        foundLine = true;
+                    }
+                }
+                if (newestFirst.size() == n) {
+                    break;
+                }
+                if (windowStart == 0) {
+                    // What is left is the first line of the file
+                    newestFirst.add(decode(buffer, 0, lineEnd));
+                    break;
+                }
+                if (foundLine) {
+                    end = windowStart + lineEnd;
+                    window = WINDOW_SIZE;
+                } else {
+                    // A line longer than the window; look further back
+                    window *= 2;
+                }
+            }
+        }
+        Collections.reverse(newestFirst);
+        return newestFirst;
+    }
+
+    private static byte byteAt(FileChannel channel, long position) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, 1).get(0);
+    }
+
+    private static String decode(MappedByteBuffer buffer, int start, int end) {
+        int length = end - start;
+        if (length > 0 && buffer.get(end - 1) == '\r') {
+            length--;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
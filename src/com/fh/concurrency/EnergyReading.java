@@ -0,0 +1,166 @@
+package com.fh.concurrency;
+
+import java.nio.ByteBuffer;
+import java.time.*;
+import java.time.format.DateTimeParseException;
+
+// A reading parsed from one line of an equipment log. Lines are free-form text; a line counts
+// as a timed reading when it starts with a timestamp, and its value is the first number after it.
+// Accepted timestamps: epoch seconds or milliseconds, ISO-8601 instants and offset date-times,
+// local date-times ("2024-11-01T10:15:00" or "2024-11-01 10:15:00", system time zone) and dates.
+public class EnergyReading {
+    // Longest line putLine writes
+    static final int MAX_LINE_BYTES = 48;
+
+    private final long timestampMillis;
+    private final double value;
+    private final String line;
+
+    public EnergyReading(long timestampMillis, double value, String line) {
+        this.timestampMillis = timestampMillis;
+        this.value = value;
+        this.line = line;
+    }
+
+    // Parse a log line; returns null when the line does not start with a timestamp
+    public static EnergyReading parse(String line) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || !Character.isDigit(trimmed.charAt(0))) {
+            return null;
+        }
+        String[] tokens = trimmed.split("\\s+");
+        int valueToken = 1;
+        Long timestamp = parseTimestamp(tokens[0]);
+        if (timestamp == null) {
+            return null;
+        }
+        // A date followed by a time of day
+        if (tokens[0].length() == 10 && tokens.length > 1 && tokens[1].indexOf(':') > 0) {
+            try {
+                LocalDateTime dateTime = LocalDateTime.of(LocalDate.parse(tokens[0]), LocalTime.parse(tokens[1]));
+                timestamp = dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                valueToken = 2;
+            } catch (DateTimeParseException e) {
+                // Not a time after all; keep the date
+            }
+        }
+        double value = Double.NaN;
+        for (int i = valueToken; i < tokens.length && Double.isNaN(value); i++) {
+            value = parseNumber(tokens[i]);
+        }
+        return new EnergyReading(timestamp, value, line);
+    }
+
+    // Timestamp at the start of a line in epoch milliseconds, or Long.MIN_VALUE when there is none
+    public static long timestampOf(String line) {
+        EnergyReading reading = parse(line);
+        return reading == null ? Long.MIN_VALUE : reading.timestampMillis;
+    }
+
+    // Write the line "<epoch millis> <value>\n" of a reading into the buffer without allocating.
+    // The value is written with at most six decimals, trailing zeros dropped; values of 1e12 and
+    // more, and infinities and NaN, are written as Double.toString writes them.
+    static void putLine(ByteBuffer out, long timestampMillis, double value) {
+        putLong(out, timestampMillis);
+        out.put((byte) ' ');
+        if (Double.isFinite(value) && Math.abs(value) < 1e12) {
+            long micros = Math.round(value * 1_000_000);
+            if (micros < 0) {
+                out.put((byte) '-');
+                micros = -micros;
+            }
+            putLong(out, micros / 1_000_000);
+            long fraction = micros % 1_000_000;
+            if (fraction != 0) {
+                out.put((byte) '.');
+                for (long divisor = 100_000; fraction != 0; divisor /= 10) {
+                    out.put((byte) ('0' + fraction / divisor));
+                    fraction %= divisor;
+                }
+            }
+        } else {
+            String text = Double.toString(value);
+            for (int i = 0; i < text.length(); i++) {
+                out.put((byte) text.charAt(i));
+            }
+        }
+        out.put((byte) '\n');
+    }
+
+    private static void putLong(ByteBuffer out, long value) {
+        if (value < 0) {
+            out.put((byte) '-');
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        int start = out.position();
+        for (int i = start + digits - 1; i >= start; i--) {
+            out.put(i, (byte) ('0' + Math.abs(value % 10)));
+            value /= 10;
+        }
+        out.position(start + digits);
+    }
+
+    private static Long parseTimestamp(String token) {
+        try {
+            if (token.chars().allMatch(Character::isDigit)) {
+                if (token.length() == 13) {
+                    return Long.parseLong(token);
+                }
+                if (token.length() == 10) {
+                    return Long.parseLong(token) * 1000;
+                }
+                return null;
+            }
+            if (token.indexOf('T') > 0) {
+                char last = token.charAt(token.length() - 1);
+                if (last == 'Z') {
+                    return Instant.parse(token).toEpochMilli();
+                }
+                if (token.lastIndexOf('+') > 0 || token.lastIndexOf('-') > 9) {
+                    return OffsetDateTime.parse(token).toInstant().toEpochMilli();
+                }
+                return LocalDateTime.parse(token).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            }
+            if (token.length() == 10) {
+                return LocalDate.parse(token).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            }
+        } catch (DateTimeParseException | NumberFormatException e) {
+            // Not a timestamp
+        }
+        return null;
+    }
+
+    private static double parseNumber(String token) {
+        // Allow units or separators glued to the number, e.g. "42.5kWh" or "42.5,"
+        int end = 0;
+        while (end < token.length() && "+-.0123456789eE".indexOf(token.charAt(end)) >= 0) {
+            end++;
+        }
+        if (end == 0) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(token.substring(0, end));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    // The first number after the timestamp, or NaN when the line has none
+    public double getValue() {
+        return value;
+    }
+
+    // The log line the reading was parsed from; readings from a binary segment have none and are
+    // shown as "<ISO-8601 instant> <value>"
+    public String getLine() {
+        return line != null ? line : Instant.ofEpochMilli(timestampMillis) + " " + value;
+    }
+}
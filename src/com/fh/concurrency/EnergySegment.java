@@ -0,0 +1,371 @@
+package com.fh.concurrency;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Binary time-series file for the readings of one equipment (<equipment>.ems). After a 16-byte
+// file header the file is made of fixed-size blocks; each block starts with a header holding its
+// reading count and min/max timestamp, followed by the compressed readings:
+//   - the first reading of a block is stored raw (8-byte timestamp, 8-byte value)
+//   - timestamps after that as the zig-zag varint of their delta-of-delta, which is a single
+//     byte for readings taken at a regular interval
+//   - values as the XOR with the previous value: one control byte with the number of leading and
+//     trailing zero bytes, then only the bytes in between (just the control byte for a repeat)
+// Range reads use the block headers as an index and only decode blocks that overlap the range.
+// Full blocks never change again and are read through a memory mapping; the block being filled
+// is copied under the lock so readers never see a half-written reading.
+class EnergySegment implements AutoCloseable {
+    static final String EXTENSION = ".ems";
+
+    private static final int MAGIC = 0x454D5353; // "EMSS"
+    private static final int FORMAT_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 16;
+    static final int BLOCK_SIZE = 4096;
+
+    // Block header layout
+    private static final int COUNT = 0;
+    private static final int USED = 4;          // Bytes of encoded readings after the header
+    private static final int MIN_TIMESTAMP = 8;
+    private static final int MAX_TIMESTAMP = 16;
+    private static final int LAST_TIMESTAMP = 24;
+    private static final int LAST_DELTA = 32;
+    private static final int LAST_VALUE_BITS = 40;
+    private static final int BLOCK_HEADER_SIZE = 48;
+    private static final int BLOCK_DATA_SIZE = BLOCK_SIZE - BLOCK_HEADER_SIZE;
+    // Full blocks are mapped in windows of this many blocks (1 GB), since one mapping cannot exceed 2 GB
+    private static final int WINDOW_BLOCKS = (1 << 30) / BLOCK_SIZE;
+
+    private static final int MAX_ENCODED_SIZE = 10 + 1 + 8; // Varint delta-of-delta, control byte, value bytes
+    private static final int SAME_VALUE = 0xFF;
+
+    private final Path path;
+    private final FileChannel channel;
+
+    // The block being filled: header and data, written through to the file on every append
+    private final ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE);
+    private final ByteBuffer blockView = block.duplicate();
+    private final ByteBuffer encoded = ByteBuffer.allocateDirect(MAX_ENCODED_SIZE);
+    private int blockCount; // Blocks in the file, including the one being filled
+
+    private EnergySegment(Path path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+    }
+
+    // Open a segment for reading and appending, creating it if it does not exist
+    static EnergySegment open(Path path) throws IOException {
+        Files.createDirectories(path.getParent());
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        EnergySegment segment = new EnergySegment(path, channel);
+        try {
+            segment.load();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return segment;
+    }
+
+    private void load() throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        if (size == 0) {
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(BLOCK_SIZE).putInt(0).flip();
+            channel.write(header, 0);
+            return;
+        }
+        channel.read(header, 0);
+        header.flip();
+        if (size < FILE_HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION
+                || header.getInt() != BLOCK_SIZE) {
+            throw new IOException("Not an energy data segment: " + path);
+        }
+        blockCount = (int) ((size - FILE_HEADER_SIZE + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        if (blockCount > 0) {
+            block.clear();
+            channel.read(block, blockOffset(blockCount - 1));
+            block.clear();
+        }
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    // Append a reading
+    synchronized void append(long timestampMillis, double value) throws IOException {
+        int dirtyFrom = BLOCK_HEADER_SIZE + block.getInt(USED);
+        flush(encode(timestampMillis, Double.doubleToRawLongBits(value), dirtyFrom));
+    }
+
+    // Append the readings [offset, offset + length) of the arrays. The block being filled is
+    // written once when it is full and once at the end instead of once per reading, and nothing
+    // is allocated per reading.
+    synchronized void append(long[] timestampsMillis, double[] values, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        int dirtyFrom = BLOCK_HEADER_SIZE + block.getInt(USED);
+        for (int i = offset; i < offset + length; i++) {
+            dirtyFrom = encode(timestampsMillis[i], Double.doubleToRawLongBits(values[i]), dirtyFrom);
+        }
+        flush(dirtyFrom);
+    }
+
+    // Add a reading to the block being filled, starting a new block when it does not fit; the
+    // full block is written out first if part of it, from dirtyFrom on, is not in the file yet.
+    // Returns where the data not yet written to the file starts in the block being filled.
+    private int encode(long timestampMillis, long valueBits, int dirtyFrom) throws IOException {
+        boolean fits = blockCount > 0 && block.getInt(COUNT) > 0 && encodeInto(timestampMillis, valueBits);
+        if (!fits) {
+            if (blockCount > 0 && dirtyFrom < BLOCK_HEADER_SIZE + block.getInt(USED)) {
+                flush(dirtyFrom);
+            }
+            startBlock(timestampMillis, valueBits);
+            dirtyFrom = BLOCK_HEADER_SIZE;
+        }
+        int used = block.getInt(USED);
+        int length = encoded.position();
+        block.put(BLOCK_HEADER_SIZE + used, encoded, 0, length);
+        block.putInt(COUNT, block.getInt(COUNT) + 1);
+        block.putInt(USED, used + length);
+        block.putLong(MIN_TIMESTAMP, Math.min(block.getLong(MIN_TIMESTAMP), timestampMillis));
+        block.putLong(MAX_TIMESTAMP, Math.max(block.getLong(MAX_TIMESTAMP), timestampMillis));
+        block.putLong(LAST_DELTA, block.getInt(COUNT) == 1 ? 0 : timestampMillis - block.getLong(LAST_TIMESTAMP));
+        block.putLong(LAST_TIMESTAMP, timestampMillis);
+        block.putLong(LAST_VALUE_BITS, valueBits);
+        return dirtyFrom;
+    }
+
+    // Write the block being filled from dirtyFrom to the end of its data: data first, then the
+    // header that makes it visible
+    private void flush(int dirtyFrom) throws IOException {
+        long blockOffset = blockOffset(blockCount - 1);
+        int end = BLOCK_HEADER_SIZE + block.getInt(USED);
+        writeFully(view(dirtyFrom, end - dirtyFrom), blockOffset + dirtyFrom);
+        writeFully(view(0, BLOCK_HEADER_SIZE), blockOffset);
+    }
+
+    // The given bytes of the block being filled, through a reused view instead of a new slice
+    private ByteBuffer view(int start, int length) {
+        return blockView.clear().position(start).limit(start + length);
+    }
+
+    // Encode a reading against the previous one of the current block; false if it does not fit
+    private boolean encodeInto(long timestampMillis, long valueBits) {
+        encoded.clear();
+        long delta = timestampMillis - block.getLong(LAST_TIMESTAMP);
+        long deltaOfDelta = delta - block.getLong(LAST_DELTA);
+        putVarLong(encoded, (deltaOfDelta << 1) ^ (deltaOfDelta >> 63));
+
+        long xor = valueBits ^ block.getLong(LAST_VALUE_BITS);
+        if (xor == 0) {
+            encoded.put((byte) SAME_VALUE);
+        } else {
+            int leading = Long.numberOfLeadingZeros(xor) / 8;
+            int trailing = Long.numberOfTrailingZeros(xor) / 8;
+            encoded.put((byte) (leading << 4 | trailing));
+            for (int i = 7 - leading; i >= trailing; i--) {
+                encoded.put((byte) (xor >>> (i * 8)));
+            }
+        }
+        return block.getInt(USED) + encoded.position() <= BLOCK_DATA_SIZE;
+    }
+
+    private void startBlock(long timestampMillis, long valueBits) {
+        // An empty block left by an interrupted append is reused
+        if (blockCount == 0 || block.getInt(COUNT) > 0) {
+            blockCount++;
+        }
+        block.clear();
+        block.putInt(COUNT, 0);
+        block.putInt(USED, 0);
+        block.putLong(MIN_TIMESTAMP, Long.MAX_VALUE);
+        block.putLong(MAX_TIMESTAMP, Long.MIN_VALUE);
+        encoded.clear();
+        encoded.putLong(timestampMillis).putLong(valueBits);
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    // Force the appended readings to disk
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    // Readings with a timestamp in [fromMillis, toMillis), block by block in file order
+    Stream<EnergyReading> readings(long fromMillis, long toMillis) throws IOException {
+        Snapshot snapshot = snapshot();
+        Spliterator<EnergyReading> blocks = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            private int next;
+            private final ArrayDeque<EnergyReading> pending = new ArrayDeque<>();
+
+            @Override
+            public boolean tryAdvance(Consumer<? super EnergyReading> action) {
+                while (pending.isEmpty() && next < snapshot.blockCount) {
+                    ByteBuffer data = snapshot.block(next++);
+                    if (data.getLong(MAX_TIMESTAMP) >= fromMillis && data.getLong(MIN_TIMESTAMP) < toMillis) {
+                        decode(data, reading -> {
+                            if (reading.getTimestampMillis() >= fromMillis && reading.getTimestampMillis() < toMillis) {
+                                pending.add(reading);
+                            }
+                        });
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return false;
+                }
+                action.accept(pending.poll());
+                return true;
+            }
+        };
+        return StreamSupport.stream(blocks, false);
+    }
+
+    // The last n readings in file order
+    List<EnergyReading> lastReadings(int n) throws IOException {
+        Snapshot snapshot = snapshot();
+        ArrayDeque<EnergyReading> last = new ArrayDeque<>();
+        for (int i = snapshot.blockCount - 1; i >= 0 && last.size() < n; i--) {
+            List<EnergyReading> readings = new ArrayList<>();
+            decode(snapshot.block(i), readings::add);
+            for (int j = readings.size() - 1; j >= 0 && last.size() < n; j--) {
+                last.addFirst(readings.get(j));
+            }
+        }
+        return new ArrayList<>(last);
+    }
+
+    private static void decode(ByteBuffer data, Consumer<EnergyReading> consumer) {
+        int count = data.getInt(COUNT);
+        if (count == 0) {
+            return;
+        }
+        ByteBuffer in = data.duplicate().position(BLOCK_HEADER_SIZE);
+        long timestamp = in.getLong();
+        long valueBits = in.getLong();
+        long delta = 0;
+        consumer.accept(new EnergyReading(timestamp, Double.longBitsToDouble(valueBits), null));
+
+        for (int i = 1; i < count; i++) {
+            long zigZag = getVarLong(in);
+            delta += (zigZag >>> 1) ^ -(zigZag & 1);
+            timestamp += delta;
+
+            int control = in.get() & 0xFF;
+            if (control != SAME_VALUE) {
+                int leading = control >>> 4;
+                int trailing = control & 0x0F;
+                long xor = 0;
+                for (int b = 7 - leading; b >= trailing; b--) {
+                    xor |= (in.get() & 0xFFL) << (b * 8);
+                }
+                valueBits ^= xor;
+            }
+            consumer.accept(new EnergyReading(timestamp, Double.longBitsToDouble(valueBits), null));
+        }
+    }
+
+    // Full blocks are mapped a window at a time; the block being filled is copied as it is right now
+    private synchronized Snapshot snapshot() throws IOException {
+        ByteBuffer current = null;
+        MappedByteBuffer[] windows = new MappedByteBuffer[0];
+        if (blockCount > 0) {
+            current = ByteBuffer.allocate(BLOCK_HEADER_SIZE + block.getInt(USED));
+            current.put(0, block, 0, current.capacity());
+            int fullBlocks = blockCount - 1;
+            windows = new MappedByteBuffer[(fullBlocks + WINDOW_BLOCKS - 1) / WINDOW_BLOCKS];
+            for (int i = 0; i < windows.length; i++) {
+                int first = i * WINDOW_BLOCKS;
+                long windowSize = (long) Math.min(WINDOW_BLOCKS, fullBlocks - first) * BLOCK_SIZE;
+                windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, blockOffset(first), windowSize);
+            }
+        }
+        return new Snapshot(blockCount, windows, current);
+    }
+
+    private static final class Snapshot {
+        final int blockCount;
+        final MappedByteBuffer[] windows; // Full blocks, WINDOW_BLOCKS per window
+        final ByteBuffer currentBlock;
+
+        Snapshot(int blockCount, MappedByteBuffer[] windows, ByteBuffer currentBlock) {
+            this.blockCount = blockCount;
+            this.windows = windows;
+            this.currentBlock = currentBlock;
+        }
+
+        ByteBuffer block(int index) {
+            if (index == blockCount - 1) {
+                return currentBlock;
+            }
+            return windows[index / WINDOW_BLOCKS].slice((index % WINDOW_BLOCKS) * BLOCK_SIZE, BLOCK_SIZE);
+        }
+    }
+
+    private static long blockOffset(int index) {
+        return FILE_HEADER_SIZE + (long) index * BLOCK_SIZE;
+    }
+
+    private static void putVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long getVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    // Convert text log files, in order, into a segment written to a temporary file and moved into
+    // place. Lines that do not start with a timestamp cannot be stored and are counted as skipped.
+    // Returns { readings converted, lines skipped }.
+    static long[] convert(List<Path> logFiles, Path segmentFile) throws IOException {
+        Path tempPath = segmentFile.resolveSibling(segmentFile.getFileName() + ".tmp");
+        Files.deleteIfExists(tempPath);
+        long converted = 0;
+        long skipped = 0;
+        try (EnergySegment segment = open(tempPath)) {
+            for (Path logFile : logFiles) {
+                try (Stream<String> lines = Files.lines(logFile)) {
+                    for (Iterator<String> it = lines.iterator(); it.hasNext(); ) {
+                        EnergyReading reading = EnergyReading.parse(it.next());
+                        if (reading == null) {
+                            skipped++;
+                        } else {
+                            segment.append(reading.getTimestampMillis(), reading.getValue());
+                            converted++;
+                        }
+                    }
+                }
+            }
+        }
+        Files.move(tempPath, segmentFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new long[] { converted, skipped };
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
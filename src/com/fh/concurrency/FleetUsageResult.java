@@ -0,0 +1,50 @@
+package com.fh.concurrency;
+
+import java.util.Arrays;
+
+// Outcome of a usage request dispatched to a battery fleet, with the energy drawn from each unit
+public class FleetUsageResult {
+    private final UsageResult.Status status;
+    private final double amount;
+    private final double[] drawnPerUnit;
+
+    FleetUsageResult(UsageResult.Status status, double amount, double[] drawnPerUnit) {
+        this.status = status;
+        this.amount = amount;
+        this.drawnPerUnit = drawnPerUnit;
+    }
+
+    public UsageResult.Status getStatus() {
+        return status;
+    }
+
+    public boolean isServed() {
+        return status == UsageResult.Status.SERVED;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    // Energy drawn from each unit, indexed like the fleet's units; all zero unless served
+    public double[] getDrawnPerUnit() {
+        return drawnPerUnit.clone();
+    }
+
+    // True when no single unit could serve the request and it was split across several
+    public boolean isSplit() {
+        return Arrays.stream(drawnPerUnit).filter(drawn -> drawn > 0).count() > 1;
+    }
+
+    @Override
+    public String toString() {
+        switch (status) {
+            case SERVED:
+                return "Used " + amount + " energy from units " + Arrays.toString(drawnPerUnit);
+            case INSUFFICIENT_CHARGE:
+                return "Insufficient charge in fleet for " + amount;
+            default:
+                return "System overload: all units at their usage limit";
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.fh.concurrency;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+// Compresses old *.log files into archive/<name>.log.gz next to them (in the log directory, or
+// in each partition of the partitioned layout, see LogLayout). Files are compressed
+// in parallel by a bounded number of workers on the shared executor, so archiving a large
+// backlog does not saturate the disk. Each archive is written to a temporary file, synced and
+// atomically renamed before the original is deleted, so a crash never leaves a partial archive
+// or loses a log. The original is renamed aside and checked once more before it is deleted,
+// so lines appended while it was compressed are never lost. An existing archive is never
+// replaced: a log archived again gets archive/<name>-<n>.log.gz. Archived logs stay
+// searchable through LogSearcher.setIncludeArchived.
+// Rotated energy log segments are archived by the age of their newest reading, as recorded in
+// the equipment's manifest, and marked archived there; the active segment is left to rotation.
+//   -Dems.archive.threads=<n>   (files compressed at the same time, default min(4, processors))
+public class LogArchiver {
+    public static final String THREADS_PROPERTY = "ems.archive.threads";
+    public static final String ARCHIVE_DIRECTORY = "archive";
+    public static final String EXTENSION = ".gz";
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final String ASIDE_EXTENSION = ".archiving"; // A log renamed aside before it is deleted
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final LogLayout layout;
+    private final int concurrency;
+    private final EMSExecutor executor;
+
+    public LogArchiver(String logDirectory) {
+        this(logDirectory, Integer.getInteger(THREADS_PROPERTY, Math.min(4, Runtime.getRuntime().availableProcessors())),
+                EMSExecutor.shared());
+    }
+
+    public LogArchiver(String logDirectory, int concurrency, EMSExecutor executor) {
+        this.layout = LogLayout.of(logDirectory);
+        this.concurrency = Math.max(1, concurrency);
+        this.executor = executor;
+    }
+
+    // Compress and remove every log not modified for more than daysOld days; returns what happened
+    // to each log. One failed log does not stop the others. The calling thread compresses logs
+    // too and only waits for logs other workers have started, so it may itself run on the executor.
+    public BulkResult archive(int daysOld) throws EMSException {
+        long start = System.nanoTime();
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(daysOld);
+        List<Path> pending = new ArrayList<>();
+        Map<Path, EnergyLogManifest> segmentManifests = new HashMap<>(); // Rotated segments and the manifest listing them
+
+        try {
+            Files.createDirectories(layout.getRoot());
+            for (Path directory : layout.directories()) {
+                collect(directory, cutoff, pending, segmentManifests);
+            }
+        } catch (IOException e) {
+            throw new EMSFileReadException("Error reading log directory: " + layout.getRoot(), e);
+        }
+
+        // Each worker takes the next log until none is left
+        BulkResult.FileResult[] results = new BulkResult.FileResult[pending.size()];
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(results.length);
+        Runnable worker = () -> {
+            int index;
+            while ((index = next.getAndIncrement()) < results.length) {
+                Path file = pending.get(index);
+                String fileName = file.getFileName().toString();
+                try {
+                    Path archive = compress(file);
+                    if (archive == null) {
+                        results[index] = BulkResult.FileResult.skipped(fileName, file, "written to while it was archived");
+                    } else {
+                        results[index] = BulkResult.FileResult.done(fileName, archive);
+                        EnergyLogManifest manifest = segmentManifests.get(file);
+                        if (manifest != null) {
+                            manifest.archived(fileName);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    results[index] = BulkResult.FileResult.failed(fileName, e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        for (int i = 1; i < Math.min(concurrency, results.length); i++) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                break; // The calling thread does the rest
+            }
+        }
+        worker.run();
+        // Wait for the logs other workers are still on; the latch publishes their results
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return new BulkResult("archive", results, System.nanoTime() - start);
+    }
+
+    // Queue the logs of one directory that are older than the cutoff
+    private static void collect(Path directory, long cutoff, List<Path> pending,
+                                Map<Path, EnergyLogManifest> segmentManifests) throws IOException {
+        removeTemporaryFiles(directory.resolve(ARCHIVE_DIRECTORY));
+        restoreSetAside(directory);
+        Set<Path> activeSegments = new HashSet<>();
+        for (EnergyLogManifest manifest : EnergyLogManifest.all(directory)) {
+            activeSegments.add(manifest.getActivePath());
+            for (EnergyLogManifest.Segment segment : manifest.sealedSegments()) {
+                Path file = directory.resolve(segment.fileName);
+                if (segment.archived || Files.notExists(file)) {
+                    continue;
+                }
+                segmentManifests.put(file, manifest);
+                long newest = segment.hasSpan() ? segment.toMillis : Files.getLastModifiedTime(file).toMillis();
+                if (newest < cutoff) {
+                    pending.add(file);
+                }
+            }
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path file : stream) {
+                if (segmentManifests.containsKey(file) || activeSegments.contains(file)) {
+                    continue;
+                }
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (attributes.isRegularFile() && attributes.lastModifiedTime().toMillis() < cutoff) {
+                    pending.add(file);
+                }
+            }
+        }
+    }
+
+    // Compress one log; returns null if the log changed while it was being compressed
+    private Path compress(Path file) throws IOException {
+        BasicFileAttributes before = Files.readAttributes(file, BasicFileAttributes.class);
+        Path archivePath = layout.archiveFor(file);
+        Path tempPath = archivePath.resolveSibling(archivePath.getFileName() + TEMP_EXTENSION);
+        Files.createDirectories(archivePath.getParent());
+
+        try (InputStream in = Files.newInputStream(file);
+             FileOutputStream fileOut = new FileOutputStream(tempPath.toFile());
+             GZIPOutputStream out = new GZIPOutputStream(fileOut, BUFFER_SIZE)) {
+            in.transferTo(out);
+            out.finish();
+            fileOut.getFD().sync();
+        }
+
+        BasicFileAttributes after = Files.readAttributes(file, BasicFileAttributes.class);
+        if (after.size() != before.size() || !after.lastModifiedTime().equals(before.lastModifiedTime())) {
+            // Still being written to; leave it for the next run
+            Files.deleteIfExists(tempPath);
+            return null;
+        }
+        // From here on, writers opening the log by name create a new one instead of appending to
+        // this one; a writer that still had it open is caught by the check below
+        Path asidePath = file.resolveSibling(file.getFileName() + ASIDE_EXTENSION);
+        Files.move(file, asidePath, StandardCopyOption.ATOMIC_MOVE);
+        BasicFileAttributes aside = Files.readAttributes(asidePath, BasicFileAttributes.class);
+        if (aside.size() != before.size() || !aside.lastModifiedTime().equals(before.lastModifiedTime())) {
+            Files.deleteIfExists(tempPath);
+            putBack(asidePath, file);
+            return null;
+        }
+        // Keep the log's own time, so the archive shows when the data was written
+        Files.setLastModifiedTime(tempPath, FileTime.fromMillis(before.lastModifiedTime().toMillis()));
+        archivePath = moveToUnusedName(tempPath, archivePath);
+        Files.delete(asidePath);
+        LogBloomFilter.deleted(file);
+        System.out.println("Archived file: " + file.getFileName() + " (" + before.size() + " -> " + Files.size(archivePath) + " bytes)");
+        return archivePath;
+    }
+
+    // Move the archive to <name>.log.gz, or <name>-<n>.log.gz with the first n not taken yet when
+    // the log was archived before; returns where it went
+    private static Path moveToUnusedName(Path tempPath, Path archivePath) throws IOException {
+        String name = archivePath.getFileName().toString();
+        String base = name.substring(0, name.length() - (".log" + EXTENSION).length());
+        for (int n = 0; ; n++) {
+            Path candidate = n == 0 ? archivePath : archivePath.resolveSibling(base + "-" + n + ".log" + EXTENSION);
+            try {
+                moveWithoutReplacing(tempPath, candidate);
+                return candidate;
+            } catch (FileAlreadyExistsException e) {
+                // Taken; try the next number
+            }
+        }
+    }
+
+    // A rename that fails with FileAlreadyExistsException instead of replacing the target, which
+    // an atomic rename does silently on most systems. A hard link fails atomically if the target exists.
+    private static void moveWithoutReplacing(Path source, Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+        } catch (UnsupportedOperationException e) {
+            // No hard links on this file system: a plain move checks for the target first
+            Files.move(source, target);
+            return;
+        }
+        Files.delete(source);
+    }
+
+    // Return a log renamed aside to its name. If a new log was created under the name meanwhile, the
+    // old one is kept aside rather than overwriting either.
+    private static void putBack(Path asidePath, Path file) throws IOException {
+        try {
+            moveWithoutReplacing(asidePath, file);
+        } catch (FileAlreadyExistsException e) {
+            throw new IOException("Log " + file + " was recreated while it was archived; earlier lines kept in " + asidePath, e);
+        }
+    }
+
+    // Logs renamed aside by an interrupted run go back under their name (unless a new log took it);
+    // if the archive was already written, the next run writes a second one rather than losing either
+    private static void restoreSetAside(Path directory) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.log" + ASIDE_EXTENSION)) {
+            for (Path asidePath : stream) {
+                String name = asidePath.getFileName().toString();
+                Path file = asidePath.resolveSibling(name.substring(0, name.length() - ASIDE_EXTENSION.length()));
+                try {
+                    moveWithoutReplacing(asidePath, file);
+                } catch (FileAlreadyExistsException e) {
+                    // A new log took the name; the old lines stay in the file aside
+                }
+            }
+        }
+    }
+
+    // Partial archives left by an interrupted run
+    private static void removeTemporaryFiles(Path archiveDirPath) throws IOException {
+        if (!Files.isDirectory(archiveDirPath)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(archiveDirPath, "*" + EXTENSION + TEMP_EXTENSION)) {
+            for (Path file : stream) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
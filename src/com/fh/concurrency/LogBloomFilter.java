@@ -0,0 +1,333 @@
+package com.fh.concurrency;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+
+// Bloom filter over the byte trigrams of a log file's lines, kept in a <name>.bloom sidecar next
+// to the file. A literal search string can only occur in a line if all of its trigrams occur in
+// that line, so a file whose filter lacks one of them is not opened by a content search. Letters
+// are folded to lower case, so the filter answers for any capitalisation of the string; regex
+// criteria and strings shorter than three bytes are not filtered.
+// The sidecar records the size and last-modified time of the file it describes and is only used
+// while they are unchanged. Sealed segments get their filter when they are rotated; any other file
+// gets one the first time a content search reaches it after it has been quiet for a minute, and
+// until then it is always scanned. Archived (compressed) logs are always scanned. A filter that
+// cannot be read, built or saved never fails a search: the file is then simply scanned.
+//   -Dems.bloom=on|off   (default on)
+class LogBloomFilter {
+    public static final String ENABLED_PROPERTY = "ems.bloom";
+    static final String EXTENSION = ".bloom";
+    private static final OperationMetrics BUILD = EMSMetrics.operation("log.bloom");
+    private static final int MAGIC = 0x424C4F4D; // "BLOM"
+    private static final int FORMAT_VERSION = 1;
+    private static final double BITS_PER_ENTRY = 9.6; // About 1% false positives
+    private static final int MAX_HASHES = 8;
+    private static final long QUIET_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    // Files whose filter is being built; a second build of the same file is not started
+    private static final Set<Path> building = ConcurrentHashMap.newKeySet();
+
+    private final long[] bits;
+    private final int hashes;
+    private final long fileSize;
+    private final long fileLastModified;
+
+    private LogBloomFilter(long[] bits, int hashes, long fileSize, long fileLastModified) {
+        this.bits = bits;
+        this.hashes = hashes;
+        this.fileSize = fileSize;
+        this.fileLastModified = fileLastModified;
+    }
+
+    static boolean isEnabled() {
+        return !"off".equalsIgnoreCase(System.getProperty(ENABLED_PROPERTY));
+    }
+
+    static Path sidecarFor(Path file) {
+        return file.resolveSibling(file.getFileName() + EXTENSION);
+    }
+
+    // The trigrams a line must contain to match the criteria, or null when the filter cannot tell
+    static int[] trigramsOf(String criteria) {
+        if (!isEnabled() || !LogContentScanner.isLiteral(criteria)) {
+            return null;
+        }
+        byte[] bytes = criteria.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < 3) {
+            return null;
+        }
+        int[] trigrams = new int[bytes.length - 2];
+        for (int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = (fold(bytes[i]) << 16) | (fold(bytes[i + 1]) << 8) | fold(bytes[i + 2]);
+        }
+        return trigrams;
+    }
+
+    private static int fold(byte b) {
+        return (b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b) & 0xFF;
+    }
+
+    // The files that may contain the trigrams, checked in parallel like the scan itself
+    static List<Path> mayContain(List<Path> files, int[] trigrams) {
+        return files.parallelStream()
+                .filter(file -> mayContain(file, trigrams))
+                .collect(Collectors.toList());
+    }
+
+    private static boolean mayContain(Path file, int[] trigrams) {
+        if (!file.getFileName().toString().endsWith(EnergyLogManifest.LOG_EXTENSION)) {
+            return true;
+        }
+        try {
+            LogBloomFilter filter = forFile(file);
+            return filter == null || filter.mightContain(trigrams);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Bloom filter unavailable for " + file + ", scanning it: " + e.getMessage());
+            return true;
+        }
+    }
+
+    boolean mightContain(int[] trigrams) {
+        for (int trigram : trigrams) {
+            if (!mightContain(trigram)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean mightContain(int trigram) {
+        long hash = mix(trigram);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        long size = (long) bits.length * Long.SIZE;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, size);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void add(int trigram) {
+        long hash = mix(trigram);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        long size = (long) bits.length * Long.SIZE;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, size);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    // MurmurHash3 finalizer
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb3fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    // The file's filter when its sidecar is current; otherwise a new one if the file has been
+    // quiet long enough to be worth it, or null
+    static LogBloomFilter forFile(Path file) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        LogBloomFilter filter = load(sidecarFor(file));
+        if (filter != null && filter.fileSize == attributes.size()
+                && filter.fileLastModified == attributes.lastModifiedTime().toMillis()) {
+            return filter;
+        }
+        if (System.currentTimeMillis() - attributes.lastModifiedTime().toMillis() < QUIET_MILLIS) {
+            return null;
+        }
+        return build(file);
+    }
+
+    // Build the file's filter on the shared executor, e.g. for a segment that was just sealed
+    static void buildAsync(Path file) {
+        if (!isEnabled()) {
+            return;
+        }
+        EMSExecutor.shared().supply(() -> build(file)).exceptionally(e -> {
+            System.err.println("Error building Bloom filter for " + file + ": " + e.getMessage());
+            return null;
+        });
+    }
+
+    // Read the file, build its filter and save it as the sidecar. Returns null, and saves nothing,
+    // if the file changed while it was read or another build of it is running.
+    static LogBloomFilter build(Path file) throws IOException {
+        if (!building.add(file)) {
+            return null;
+        }
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            LogBloomFilter filter = buildFilter(file);
+            succeeded = true;
+            return filter;
+        } finally {
+            building.remove(file);
+            BUILD.record(start, succeeded);
+        }
+    }
+
+    private static LogBloomFilter buildFilter(Path file) throws IOException {
+        BasicFileAttributes before = Files.readAttributes(file, BasicFileAttributes.class);
+        TrigramSet trigrams = new TrigramSet();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            int window = 0;
+            int length = 0; // Bytes of the current line in the window, up to 3
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        length = 0;
+                        continue;
+                    }
+                    window = ((window << 8) | fold(b)) & 0xFFFFFF;
+                    if (++length >= 3) {
+                        trigrams.add(window);
+                    }
+                }
+                buffer.clear();
+            }
+        }
+        BasicFileAttributes after = Files.readAttributes(file, BasicFileAttributes.class);
+        if (after.size() != before.size() || !after.lastModifiedTime().equals(before.lastModifiedTime())) {
+            return null;
+        }
+
+        int entries = Math.max(1, trigrams.size());
+        int words = (int) Math.max(1, Math.ceil(entries * BITS_PER_ENTRY / Long.SIZE));
+        int hashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round((double) words * Long.SIZE / entries * Math.log(2))));
+        LogBloomFilter filter = new LogBloomFilter(new long[words], hashes, before.size(), before.lastModifiedTime().toMillis());
+        trigrams.forEach(filter::add);
+        try {
+            filter.save(sidecarFor(file));
+        } catch (IOException e) {
+            // Still good for this search; the next one tries to save it again
+            System.err.println("Error saving Bloom filter for " + file + ": " + e.getMessage());
+        }
+        return filter;
+    }
+
+    // Write to a temporary file of its own and atomically replace the previous sidecar
+    private void save(Path sidecar) throws IOException {
+        Path tempPath = Files.createTempFile(sidecar.getParent(), sidecar.getFileName() + ".", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(fileSize);
+                out.writeLong(fileLastModified);
+                out.writeInt(hashes);
+                out.writeInt(bits.length);
+                for (long word : bits) {
+                    out.writeLong(word);
+                }
+            }
+            Files.move(tempPath, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath); // Left only when the move failed
+        }
+    }
+
+    // Null when there is no sidecar or it cannot be read; it is then rebuilt
+    private static LogBloomFilter load(Path sidecar) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecar)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            long fileSize = in.readLong();
+            long fileLastModified = in.readLong();
+            int hashes = in.readInt();
+            long[] bits = new long[in.readInt()];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.readLong();
+            }
+            return new LogBloomFilter(bits, hashes, fileSize, fileLastModified);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Move a file's sidecar along with it; a sidecar that no longer matches is rebuilt later
+    static void moved(Path from, Path to) throws IOException {
+        Path sidecar = sidecarFor(from);
+        if (Files.exists(sidecar)) {
+            Files.move(sidecar, sidecarFor(to), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    static void deleted(Path file) throws IOException {
+        Files.deleteIfExists(sidecarFor(file));
+    }
+
+    // Open-addressing set of the distinct trigrams of a file
+    private static class TrigramSet {
+        private int[] table = new int[1024]; // Trigram + 1, 0 for an empty slot
+        private int size;
+
+        void add(int trigram) {
+            int value = trigram + 1;
+            int mask = table.length - 1;
+            int slot = (int) mix(value) & mask;
+            while (table[slot] != 0) {
+                if (table[slot] == value) {
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = value;
+            if (++size * 2 > table.length) {
+                grow();
+            }
+        }
+
+        private void grow() {
+            int[] old = table;
+            table = new int[old.length * 2];
+            size = 0;
+            for (int value : old) {
+                if (value != 0) {
+                    add(value - 1);
+                }
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        void forEach(IntConsumer action) {
+            Arrays.stream(table).filter(value -> value != 0).forEach(value -> action.accept(value - 1));
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.fh.concurrency;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// Size-bounded cache of file contents as lines, shared by log and energy-data retrieval.
+// Entries are weighted by their approximate heap size and evicted least recently used first.
+// An entry is only served while the file still has the size and last-modified time it was read
+// with; appends made through appended() extend the entry instead of invalidating it.
+//   -Dems.cache.bytes=<n>   (capacity, default 64 MB; 0 disables the cache)
+public class LogCache {
+    public static final String CAPACITY_PROPERTY = "ems.cache.bytes";
+    public static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+    private static final int LINE_OVERHEAD = 48; // String and list slot per line
+
+    private static LogCache shared;
+
+    private final long capacityBytes;
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder extensions = new LongAdder();
+
+    public LogCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    // The cache used by LogSearcher and EnergyDataExchange, sized from the system property
+    public static synchronized LogCache shared() {
+        if (shared == null) {
+            shared = new LogCache(Long.getLong(CAPACITY_PROPERTY, DEFAULT_CAPACITY));
+        }
+        return shared;
+    }
+
+    // The lines of a file, from the cache when it is unchanged since it was read. The returned list
+    // is an unmodifiable view that later appends to the file do not change. A file too large to be
+    // cached is streamed line by line into the list; use forEachLine to not hold it at all.
+    public List<String> readLines(Path file) throws IOException {
+        BasicFileAttributes before = attributes(file);
+        List<String> cached = cachedLines(file, before);
+        if (cached != null) {
+            return cached;
+        }
+        misses.increment();
+        if (!fits(before)) {
+            List<String> lines = new ArrayList<>();
+            streamLines(file, lines::add);
+            return Collections.unmodifiableList(lines);
+        }
+
+        byte[] bytes = Files.readAllBytes(file);
+        List<String> lines = new String(bytes, StandardCharsets.UTF_8).lines().toList();
+        BasicFileAttributes after = attributes(file);
+        // Only cache what was read from an unchanged file
+        if (after.size() == bytes.length && after.size() == before.size()
+                && after.lastModifiedTime().equals(before.lastModifiedTime())) {
+            boolean endsWithNewline = bytes.length == 0 || bytes[bytes.length - 1] == '\n';
+            put(file, new Entry(lines, after, endsWithNewline));
+        }
+        return lines;
+    }
+
+    // Pass each line of a file to action. Files too large to ever be cached are streamed instead of
+    // being read into memory as a whole.
+    public void forEachLine(Path file, Consumer<String> action) throws IOException {
+        BasicFileAttributes before = attributes(file);
+        List<String> cached = cachedLines(file, before);
+        if (cached == null && !fits(before)) {
+            misses.increment();
+            streamLines(file, action);
+            return;
+        }
+        (cached != null ? cached : readLines(file)).forEach(action);
+    }
+
+    private static void streamLines(Path file, Consumer<String> action) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                action.accept(line);
+            }
+        }
+    }
+
+    private synchronized List<String> cachedLines(Path file, BasicFileAttributes attributes) {
+        Entry entry = entries.get(file);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.matches(attributes)) {
+            hits.increment();
+            return entry.view();
+        }
+        remove(file);
+        invalidations.increment();
+        return null;
+    }
+
+    // Whether a file of this size could be cached at all, judged from its raw size
+    private boolean fits(BasicFileAttributes attributes) {
+        return capacityBytes > 0 && attributes.size() <= capacityBytes;
+    }
+
+    // Record that data (one or more lines, without the final newline) was appended to a file as
+    // bytesWritten bytes. A cached entry is extended when nothing else changed the file meanwhile.
+    public void appended(Path file, String data, long bytesWritten) {
+        appended(file, () -> data, bytesWritten);
+    }
+
+    // As above, with the data only produced when the file has an entry to extend
+    public void appended(Path file, Supplier<String> data, long bytesWritten) {
+        if (capacityBytes <= 0) {
+            return;
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            invalidate(file);
+            return;
+        }
+        synchronized (this) {
+            Entry entry = entries.get(file);
+            if (entry == null) {
+                return;
+            }
+            if (!entry.endsWithNewline || attributes.size() != entry.size + bytesWritten) {
+                remove(file);
+                invalidations.increment();
+                return;
+            }
+            String appendedData = data.get();
+            List<String> added = appendedData.isEmpty() ? List.of("") : appendedData.lines().toList();
+            long addedWeight = 0;
+            for (String line : added) {
+                addedWeight += weightOf(line);
+            }
+            entry.add(added);
+            entry.size = attributes.size();
+            entry.lastModified = attributes.lastModifiedTime().toMillis();
+            entry.weight += addedWeight;
+            weight += addedWeight;
+            extensions.increment();
+            evictIfNeeded();
+        }
+    }
+
+    // Drop the entry of a file, e.g. after it was deleted or moved
+    public synchronized void invalidate(Path file) {
+        if (remove(file) != null) {
+            invalidations.increment();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    private BasicFileAttributes attributes(Path file) throws IOException {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            invalidate(file);
+            throw e;
+        }
+    }
+
+    private synchronized void put(Path file, Entry entry) {
+        for (int i = 0; i < entry.count; i++) {
+            entry.weight += weightOf(entry.lines[i]);
+        }
+        if (capacityBytes <= 0 || entry.weight > capacityBytes) {
+            return;
+        }
+        remove(file);
+        entries.put(file, entry);
+        weight += entry.weight;
+        evictIfNeeded();
+    }
+
+    private Entry remove(Path file) {
+        Entry entry = entries.remove(file);
+        if (entry != null) {
+            weight -= entry.weight;
+        }
+        return entry;
+    }
+
+    // Evict least recently used entries until the cache is within its capacity
+    private void evictIfNeeded() {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (weight > capacityBytes && eldest.hasNext()) {
+            weight -= eldest.next().weight;
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private static long weightOf(String line) {
+        return line.length() + LINE_OVERHEAD;
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    public synchronized long getWeightBytes() {
+        return weight;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    // Entries dropped because their file changed other than through appended()
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public long getExtensions() {
+        return extensions.sum();
+    }
+
+    @Override
+    public String toString() {
+        long hitCount = getHits();
+        long requests = hitCount + getMisses();
+        return String.format("Cache: %d entries, %d of %d bytes, %d hits, %d misses (%.1f%% hit rate), "
+                        + "%d evictions, %d invalidations, %d extensions",
+                getEntryCount(), getWeightBytes(), capacityBytes, hitCount, getMisses(),
+                requests == 0 ? 0.0 : hitCount * 100.0 / requests, getEvictions(), getInvalidations(), getExtensions());
+    }
+
+    // Lines are only ever added behind count, so a view over the first count slots stays valid
+    // without copying when the entry is extended later.
+    private static final class Entry {
+        String[] lines;
+        int count;
+        final boolean endsWithNewline;
+        long size;
+        long lastModified;
+        long weight;
+
+        Entry(List<String> lines, BasicFileAttributes attributes, boolean endsWithNewline) {
+            this.lines = lines.toArray(new String[0]);
+            this.count = this.lines.length;
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.endsWithNewline = endsWithNewline;
+        }
+
+        void add(List<String> added) {
+            if (count + added.size() > lines.length) {
+                lines = Arrays.copyOf(lines, Math.max(count + added.size(), lines.length * 2));
+            }
+            for (String line : added) {
+                lines[count++] = line;
+            }
+        }
+
+        List<String> view() {
+            return Collections.unmodifiableList(Arrays.asList(lines).subList(0, count));
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && lastModified == attributes.lastModifiedTime().toMillis();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.fh.concurrency;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+// Scans the contents of log files in parallel. Large files are split into chunks so that
+// a single big equipment log is spread over all cores instead of being read by one thread.
+// Gzip-compressed (archived) logs are decompressed as a stream by one task each.
+class LogContentScanner {
+    private static final long CHUNK_SIZE = 32L * 1024 * 1024;      // Bytes of a file handled by one task
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;        // Longer lines are cut off at this length
+    private static final long MAP_THRESHOLD = 256L * 1024;         // Smaller files are read into a heap buffer
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;       // Read size for compressed logs
+    private static final String REGEX_METACHARACTERS = "\\^$.|?*+()[]{}";
+
+    private final Pattern pattern;
+    private final byte[] literal; // Set when the criteria contain no regex metacharacters
+
+    LogContentScanner(Pattern pattern) {
+        this.pattern = pattern;
+        this.literal = isLiteral(pattern.pattern()) ? pattern.pattern().getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    static boolean isLiteral(String criteria) {
+        for (int i = 0; i < criteria.length(); i++) {
+            if (REGEX_METACHARACTERS.indexOf(criteria.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+        return !criteria.isEmpty();
+    }
+
+    // Scan all given files and return the matching lines ordered by file and offset
+    List<LogMatch> scan(List<Path> files) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        for (Path file : files) {
+            if (file.getFileName().toString().endsWith(LogArchiver.EXTENSION)) {
+                chunks.add(new Chunk(file, 0, 0, true));
+                continue;
+            }
+            long size = Files.size(file);
+            for (long start = 0; start < size; start += CHUNK_SIZE) {
+                chunks.add(new Chunk(file, start, Math.min(size, start + CHUNK_SIZE), false));
+            }
+        }
+
+        try {
+            return chunks.parallelStream()
+                    .map(this::scanChunk)
+                    .flatMap(List::stream)
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private List<LogMatch> scanChunk(Chunk chunk) {
+        if (chunk.compressed) {
+            return scanCompressed(chunk.file);
+        }
+        try (FileChannel channel = FileChannel.open(chunk.file, StandardOpenOption.READ)) {
+            // The file may have shrunk since it was listed
+            long fileSize = channel.size();
+            if (chunk.start >= fileSize) {
+                return List.of();
+            }
+            // Map one byte before the chunk to tell whether it begins on a line boundary,
+            // and some bytes after it so the last line that starts inside the chunk can be completed
+            long mapStart = chunk.start == 0 ? 0 : chunk.start - 1;
+            long mapEnd = Math.min(fileSize, chunk.end + MAX_LINE_LENGTH);
+            ByteBuffer buffer = readRegion(channel, mapStart, mapEnd - mapStart);
+
+            int position = 0;
+            if (chunk.start > 0) {
+                // Lines starting in the previous chunk belong to the previous chunk
+                position = buffer.get(0) == '\n' ? 1 : indexOf(buffer, (byte) '\n', 1) + 1;
+                if (position == 0) {
+                    return List.of();
+                }
+            }
+            int ownedEnd = (int) Math.min(chunk.end - mapStart, buffer.limit());
+
+            return literal != null
+                    ? scanLiteral(chunk.file, buffer, mapStart, position, ownedEnd)
+                    : scanLines(chunk.file, buffer, mapStart, position, ownedEnd);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static ByteBuffer readRegion(FileChannel channel, long start, long length) throws IOException {
+        if (length >= MAP_THRESHOLD) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) >= 0) {
+            // Keep reading until the region is filled or the end of the file is reached
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Decode and match every line that starts in [position, ownedEnd)
+    private List<LogMatch> scanLines(Path file, ByteBuffer buffer, long base, int position, int ownedEnd) {
+        List<LogMatch> matches = new ArrayList<>();
+        byte[] lineBytes = new byte[256];
+        while (position < ownedEnd) {
+            int lineEnd = lineEnd(buffer, position);
+            int length = trimmedLength(buffer, position, lineEnd);
+            if (lineBytes.length < length) {
+                lineBytes = new byte[Math.max(length, lineBytes.length * 2)];
+            }
+            buffer.get(position, lineBytes, 0, length);
+            String line = new String(lineBytes, 0, length, StandardCharsets.UTF_8);
+            if (pattern.matcher(line).find()) {
+                matches.add(new LogMatch(file, base + position, line));
+            }
+            position = lineEnd + 1;
+        }
+        return matches;
+    }
+
+    // Search the raw bytes for the literal and only decode the lines that contain it
+    private List<LogMatch> scanLiteral(Path file, ByteBuffer buffer, long base, int position, int ownedEnd) {
+        List<LogMatch> matches = new ArrayList<>();
+        int lineStart = position;
+        while (lineStart < ownedEnd) {
+            int hit = indexOf(buffer, literal, lineStart);
+            if (hit < 0) {
+                break;
+            }
+            // Walk back to the start of the line containing the hit
+            int start = hit;
+            while (start > lineStart && buffer.get(start - 1) != '\n') {
+                start--;
+            }
+            if (start >= ownedEnd) {
+                break;
+            }
+            int lineEnd = lineEnd(buffer, hit);
+            int length = trimmedLength(buffer, start, lineEnd);
+            byte[] lineBytes = new byte[length];
+            buffer.get(start, lineBytes);
+            matches.add(new LogMatch(file, base + start, new String(lineBytes, StandardCharsets.UTF_8)));
+            lineStart = lineEnd + 1;
+        }
+        return matches;
+    }
+
+    // Decompress a gzip-compressed log as a stream; offsets are positions in the uncompressed data
+    private List<LogMatch> scanCompressed(Path file) {
+        List<LogMatch> matches = new ArrayList<>();
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file), STREAM_BUFFER_SIZE)) {
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            byte[] line = new byte[256];
+            int lineLength = 0;
+            long lineOffset = 0;
+            long position = 0;
+            int read;
+
+            while ((read = in.read(buffer)) > 0) {
+                int segmentStart = 0;
+                while (segmentStart <= read) {
+                    int newline = segmentStart;
+                    while (newline < read && buffer[newline] != '\n') {
+                        newline++;
+                    }
+                    // Append the part of the line in this buffer, up to the line length limit
+                    int copy = Math.min(newline - segmentStart, MAX_LINE_LENGTH - lineLength);
+                    if (copy > 0) {
+                        if (line.length < lineLength + copy) {
+                            line = Arrays.copyOf(line, Math.max(lineLength + copy, line.length * 2));
+                        }
+                        System.arraycopy(buffer, segmentStart, line, lineLength, copy);
+                        lineLength += copy;
+                    }
+                    if (newline == read) {
+                        break;
+                    }
+                    matchLine(file, line, lineLength, lineOffset, matches);
+                    lineLength = 0;
+                    lineOffset = position + newline + 1;
+                    segmentStart = newline + 1;
+                }
+                position += read;
+            }
+            if (lineOffset < position) {
+                matchLine(file, line, lineLength, lineOffset, matches);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return matches;
+    }
+
+    private void matchLine(Path file, byte[] line, int length, long offset, List<LogMatch> matches) {
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        if (literal != null && indexOf(ByteBuffer.wrap(line, 0, length), literal, 0) < 0) {
+            return;
+        }
+        String text = new String(line, 0, length, StandardCharsets.UTF_8);
+        if (literal != null || pattern.matcher(text).find()) {
+            matches.add(new LogMatch(file, offset, text));
+        }
+    }
+
+    private static int lineEnd(ByteBuffer buffer, int from) {
+        int newline = indexOf(buffer, (byte) '\n', from);
+        return newline < 0 ? buffer.limit() : newline;
+    }
+
+    private static int trimmedLength(ByteBuffer buffer, int start, int lineEnd) {
+        int length = Math.min(lineEnd - start, MAX_LINE_LENGTH);
+        if (length > 0 && buffer.get(start + length - 1) == '\r') {
+            length--;
+        }
+        return length;
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte value, int from) {
+        for (int i = from; i < buffer.limit(); i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte[] needle, int from) {
+        int last = buffer.limit() - needle.length;
+        byte first = needle[0];
+        outer:
+        for (int i = from; i <= last; i++) {
+            if (buffer.get(i) != first) {
+                continue;
+            }
+            for (int j = 1; j < needle.length; j++) {
+                if (buffer.get(i + j) != needle[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    // A byte range of one file; the chunk owns every line that starts inside it.
+    // A compressed file is always a single chunk.
+    private static class Chunk {
+        private final Path file;
+        private final long start;
+        private final long end;
+        private final boolean compressed;
+
+        Chunk(Path file, long start, long end, boolean compressed) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.compressed = compressed;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.fh.concurrency;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Bulk export of log files into one output. The files are concatenated with
+// FileChannel.transferTo, so their bytes go from the page cache to the target without being
+// copied through the Java heap (sendfile or copy_file_range where the OS supports it). An export
+// is a fixed sequence of files with their sizes taken when it starts; it can be resumed from any
+// byte offset of that concatenation, e.g. the size of a partly written output file. An export to
+// a file records that sequence in <target>.export until it completes, and a resumed export only
+// continues when the files still match it: the same files in the same order and sizes, except
+// that the last one may have grown. Otherwise it starts over.
+public class LogExporter {
+    private static final OperationMetrics EXPORT = EMSMetrics.operation("log.export");
+    private static final String PLAN_EXTENSION = ".export";
+
+    private final String logDirectory;
+    private final Metadata metadata;
+    private final LogIndex index; // Optional, passed on to the searches that select the files
+
+    public LogExporter(String logDirectory, Metadata metadata) {
+        this(logDirectory, metadata, null);
+    }
+
+    public LogExporter(String logDirectory, Metadata metadata, LogIndex index) {
+        this.logDirectory = logDirectory;
+        this.metadata = metadata;
+        this.index = index;
+    }
+
+    // The log files of an equipment, found through LogSearcher by equipment name and, when a date
+    // (yyyy-MM-dd) is given, also by date, plus its rotated energy log segments holding readings
+    // of that day. Sorted by name with the active energy log last, so an export always concatenates
+    // them in the same order and only the end of it grows between attempts.
+    public List<Path> selectFiles(String equipmentName, String date) throws EMSException {
+        LogSearcher searcher = new LogSearcher(logDirectory, metadata, equipmentName, index);
+        List<String> criteria = date == null ? List.of(equipmentName) : List.of(equipmentName, date);
+        Map<String, List<String>> found = searcher.searchBatch(criteria);
+
+        Set<Path> files = new LinkedHashSet<>();
+        for (String file : found.get(equipmentName)) {
+            Path path = Paths.get(file);
+            if (isLogOf(path.getFileName().toString(), equipmentName) && (date == null || found.get(date).contains(file))) {
+                files.add(path);
+            }
+        }
+        String activeName = equipmentName + EnergyLogManifest.LOG_EXTENSION;
+        Path logDirPath = LogLayout.of(logDirectory).directoryFor(activeName);
+        long fromMillis = Long.MIN_VALUE;
+        long toMillis = Long.MAX_VALUE;
+        if (date != null) {
+            LocalDate day = LocalDate.parse(date);
+            fromMillis = day.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            toMillis = day.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+        try {
+            EnergyLogManifest manifest = EnergyLogManifest.of(logDirPath, equipmentName);
+            for (Path segment : manifest.segmentFiles(fromMillis, toMillis)) {
+                // The active log has no recorded span; with a date it is only included by name
+                if (Files.exists(segment) && (date == null || !segment.equals(manifest.getActivePath()))) {
+                    files.add(segment);
+                }
+            }
+        } catch (IOException e) {
+            throw new EMSFileReadException("Error reading log manifest for " + equipmentName, e);
+        }
+
+        List<Path> sorted = new ArrayList<>(files);
+        sorted.sort(Comparator.<Path, Boolean>comparing(file -> file.getFileName().toString().equals(activeName))
+                .thenComparing(file -> file.getFileName().toString()));
+        return sorted;
+    }
+
+    // The search matches names by substring; only <equipment>.log, its rotated segments
+    // <equipment>.NNNNNN.log and <equipment>_... logs belong to the equipment
+    private static boolean isLogOf(String fileName, String equipmentName) {
+        if (!fileName.startsWith(equipmentName) || !fileName.endsWith(EnergyLogManifest.LOG_EXTENSION)) {
+            return false;
+        }
+        String rest = fileName.substring(equipmentName.length(), fileName.length() - EnergyLogManifest.LOG_EXTENSION.length());
+        return rest.isEmpty() || rest.startsWith("_") || (rest.length() == 7 && rest.matches("\\.\\d{6}"));
+    }
+
+    // Export the selected files of an equipment into the target file. When resume is set and the
+    // target exists, the export continues after what it already holds; otherwise it is replaced.
+    // Returns the size of the complete export.
+    public long export(String equipmentName, String date, Path target, boolean resume) throws EMSException {
+        List<Path> files = selectFiles(equipmentName, date);
+        long size = exportTo(files, target, resume);
+        metadata.logOperation(equipmentName, "Exported " + files.size() + " log files (" + size + " bytes) to " + target);
+        return size;
+    }
+
+    // Concatenate the files into the target file, forced to disk before returning
+    public long exportTo(List<Path> files, Path target, boolean resume) throws EMSException {
+        Path planPath = target.resolveSibling(target.getFileName() + PLAN_EXTENSION);
+        try {
+            if (target.getParent() != null) {
+                Files.createDirectories(target.getParent());
+            }
+            long[] sizes = sizesOf(files);
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                long offset = 0;
+                long[] planned = resume ? resumablePlan(planPath, files, sizes) : null;
+                if (planned != null && out.size() <= total(planned)) {
+                    sizes = planned;
+                    offset = out.size();
+                } else {
+                    if (resume && out.size() > 0) {
+                        System.out.println("The logs changed since the export to " + target + " was started; starting over");
+                    }
+                    savePlan(planPath, files, sizes);
+                }
+                // Anything past the offset is the tail of an interrupted write and is written again
+                out.truncate(offset);
+                out.position(offset);
+                long size = exportTo(files, sizes, out, offset);
+                out.force(true);
+                Files.deleteIfExists(planPath);
+                return size;
+            }
+        } catch (IOException e) {
+            throw new EMSFileWriteException("Error writing export to " + target, e);
+        }
+    }
+
+    // Write the concatenation of the files, with their sizes as they are now, to the target
+    // channel, starting at the given byte offset of the concatenation; returns the size of the
+    // complete concatenation
+    public long exportTo(List<Path> files, WritableByteChannel target, long offset) throws EMSException {
+        return exportTo(files, sizesOf(files), target, offset);
+    }
+
+    private long exportTo(List<Path> files, long[] sizes, WritableByteChannel target, long offset) throws EMSException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            long size = transfer(files, sizes, target, offset);
+            succeeded = true;
+            return size;
+        } finally {
+            EXPORT.record(start, succeeded);
+        }
+    }
+
+    // The sizes the export takes of the files; bytes appended later belong to the next export
+    private static long[] sizesOf(List<Path> files) throws EMSException {
+        long[] sizes = new long[files.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            try {
+                sizes[i] = Files.size(files.get(i));
+            } catch (NoSuchFileException e) {
+                throw new EMSFileNotFoundException("Log file does not exist: " + files.get(i), e);
+            } catch (IOException e) {
+                throw new EMSFileReadException("Error exporting log file: " + files.get(i), e);
+            }
+        }
+        return sizes;
+    }
+
+    private static long total(long[] sizes) {
+        long total = 0;
+        for (long size : sizes) {
+            total += size;
+        }
+        return total;
+    }
+
+    // The sizes recorded by the interrupted export, or null when there is none or the files no
+    // longer match it
+    private static long[] resumablePlan(Path planPath, List<Path> files, long[] sizes) throws IOException {
+        if (Files.notExists(planPath)) {
+            return null;
+        }
+        List<String> lines = Files.readAllLines(planPath, StandardCharsets.UTF_8);
+        if (lines.size() != files.size()) {
+            return null;
+        }
+        long[] planned = new long[lines.size()];
+        for (int i = 0; i < planned.length; i++) {
+            String line = lines.get(i);
+            int space = line.indexOf(' ');
+            if (space < 0 || !line.substring(space + 1).equals(files.get(i).toString())) {
+                return null;
+            }
+            try {
+                planned[i] = Long.parseLong(line.substring(0, space));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            boolean last = i == planned.length - 1;
+            if (last ? sizes[i] < planned[i] : sizes[i] != planned[i]) {
+                return null;
+            }
+        }
+        return planned;
+    }
+
+    // One "<size> <path>" line per file, in export order
+    private static void savePlan(Path planPath, List<Path> files, long[] sizes) throws IOException {
+        StringBuilder plan = new StringBuilder();
+        for (int i = 0; i < sizes.length; i++) {
+            plan.append(sizes[i]).append(' ').append(files.get(i)).append('\n');
+        }
+        Path tempPath = planPath.resolveSibling(planPath.getFileName() + ".tmp");
+        Files.writeString(tempPath, plan, StandardCharsets.UTF_8);
+        Files.move(tempPath, planPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private long transfer(List<Path> files, long[] sizes, WritableByteChannel target, long offset) throws EMSException {
+        long fileStart = 0; // Offset of the current file within the concatenation
+        for (int i = 0; i < sizes.length; i++) {
+            Path file = files.get(i);
+            long size = sizes[i];
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                long position = Math.max(0, offset - fileStart);
+                while (position < size) {
+                    long transferred = in.transferTo(position, size - position, target);
+                    if (transferred == 0 && in.size() <= position) {
+                        throw new IOException("Log file was truncated during the export");
+                    }
+                    position += transferred;
+                }
+                fileStart += size;
+            } catch (NoSuchFileException e) {
+                throw new EMSFileNotFoundException("Log file does not exist: " + file, e);
+            } catch (IOException e) {
+                throw new EMSFileReadException("Error exporting log file: " + file, e);
+            }
+        }
+        return fileStart;
+    }
+}
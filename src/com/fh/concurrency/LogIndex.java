@@ -0,0 +1,649 @@
+package com.fh.concurrency;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Persistent inverted index over the *.log files of the log directory. File names, dates and
+// content tokens are mapped to files and line offsets, so searches become lookups instead of
+// directory scans. A WatchService thread keeps the index current as files are created,
+// appended to, moved or deleted, and the index is saved to disk so it survives restarts.
+// Files are keyed by name and located through the LogLayout; in the partitioned layout every
+// partition is watched, including partitions created while the index runs.
+public class LogIndex implements AutoCloseable {
+    private static final String INDEX_FILE_NAME = ".logindex";
+    private static final int MAGIC = 0x4C4F4749; // "LOGI"
+    private static final int FORMAT_VERSION = 2; // 2: strings as length-prefixed UTF-8, so tokens may exceed 64 KB
+    private static final long SAVE_INTERVAL_MILLIS = 10_000;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_LINE_LENGTH = 4096; // Bytes read when showing a looked-up line
+    private static final Pattern DATE = Pattern.compile("\\d{4}-\\d{2}-\\d{2}");
+
+    private final LogLayout layout;
+    private final Path logDirPath;
+    private final Path indexFilePath;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // File name -> what has been indexed for it
+    private final Map<String, FileEntry> files = new HashMap<>();
+    // Token of a file name (equipment, date, ...) -> file names
+    private final Map<String, Set<String>> nameTokens = new HashMap<>();
+    // Token of the file contents -> file name -> offsets of the lines containing it
+    private final Map<String, Map<String, Offsets>> contentTokens = new HashMap<>();
+
+    private WatchService watchService;
+    private final Set<Path> watchedDirectories = new HashSet<>(); // Touched by start() and then only by the watcher thread
+    private Thread watcherThread;
+    private volatile boolean dirty;
+    private long lastSaveMillis;
+
+    public LogIndex(String logDirectory) {
+        this.layout = LogLayout.of(logDirectory);
+        this.logDirPath = layout.getRoot();
+        this.indexFilePath = logDirPath.resolve(INDEX_FILE_NAME);
+    }
+
+    // Load the saved index, bring it up to date with the directory and start watching for changes
+    public void start() throws EMSException {
+        try {
+            Files.createDirectories(logDirPath);
+            load();
+            // Watching before scanning, so files created during the scan are not missed
+            watchService = logDirPath.getFileSystem().newWatchService();
+            watch(logDirPath);
+            rescan();
+            save();
+        } catch (IOException e) {
+            throw new EMSResourceException("Unable to open log index for " + logDirPath, e);
+        }
+
+        watcherThread = new Thread(this::watchDirectory, "log-index-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    private void joinWatcher() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                watcherThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void watch(Path directory) throws IOException {
+        if (watchedDirectories.add(directory)) {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        }
+    }
+
+    // A partition created while the index runs. Its date partitions and files may have been
+    // created with it, before it was watched, so they are watched and indexed here.
+    private void watchPartition(Path partition) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(partition)) {
+            watch(partition);
+            for (Path entry : stream) {
+                String name = entry.getFileName().toString();
+                if (isPartition(name) && Files.isDirectory(entry)) {
+                    watchPartition(entry);
+                } else if (name.endsWith(".log")) {
+                    files.add(entry);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return; // Removed again
+        }
+        for (Path file : files) {
+            refresh(file.getFileName().toString());
+        }
+    }
+
+    // Stop watching and save the index, once the watcher is done with any save of its own
+    @Override
+    public void close() {
+        try {
+            if (watchService != null) {
+                watchService.close();
+            }
+            if (watcherThread != null) {
+                watcherThread.interrupt();
+                joinWatcher();
+            }
+            save();
+        } catch (IOException e) {
+            System.err.println("Error saving log index: " + e.getMessage());
+        }
+    }
+
+    // Files whose name contains the given date, without listing the directory
+    public List<Path> filesForDate(String date) {
+        lock.readLock().lock();
+        try {
+            return toPaths(nameTokens.getOrDefault(date, Set.of()));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Files whose name matches the pattern, checked against the in-memory name table
+    public List<Path> filesMatching(Pattern namePattern) {
+        lock.readLock().lock();
+        try {
+            List<String> names = new ArrayList<>();
+            for (String name : files.keySet()) {
+                if (namePattern.matcher(name).matches()) {
+                    names.add(name);
+                }
+            }
+            return toPaths(names);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // All indexed files, for callers that match many criteria against the names in one pass
+    public List<Path> indexedFiles() {
+        lock.readLock().lock();
+        try {
+            return toPaths(files.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Lines of all indexed files that contain the token (case-insensitive)
+    public List<LogMatch> lookup(String token) throws IOException {
+        Map<String, long[]> hits = new TreeMap<>();
+        lock.readLock().lock();
+        try {
+            Map<String, Offsets> postings = contentTokens.get(token.toLowerCase(Locale.ROOT));
+            if (postings != null) {
+                postings.forEach((name, offsets) -> hits.put(name, offsets.toArray()));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // Read the matching lines outside the lock
+        List<LogMatch> matches = new ArrayList<>();
+        for (Map.Entry<String, long[]> hit : hits.entrySet()) {
+            Path file = layout.resolve(hit.getKey());
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                for (long offset : hit.getValue()) {
+                    matches.add(new LogMatch(file, offset, readLine(channel, offset)));
+                }
+            } catch (NoSuchFileException e) {
+                // Deleted since it was indexed; the watcher will drop it
+            }
+        }
+        return matches;
+    }
+
+    public int indexedFileCount() {
+        lock.readLock().lock();
+        try {
+            return files.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<Path> toPaths(Collection<String> names) {
+        List<Path> paths = new ArrayList<>(names.size());
+        for (String name : new TreeSet<>(names)) {
+            paths.add(layout.resolve(name));
+        }
+        return paths;
+    }
+
+    private static String readLine(FileChannel channel, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_LINE_LENGTH);
+        channel.read(buffer, offset);
+        buffer.flip();
+        int length = 0;
+        while (length < buffer.limit() && buffer.get(length) != '\n') {
+            length++;
+        }
+        if (length > 0 && buffer.get(length - 1) == '\r') {
+            length--;
+        }
+        return new String(buffer.array(), 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Watcher loop: apply directory events and save the index periodically
+    private void watchDirectory() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                WatchKey key = watchService.poll(1, TimeUnit.SECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            rescan();
+                            continue;
+                        }
+                        String name = event.context().toString();
+                        Path directory = ((Path) key.watchable()).resolve(name);
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && isPartition(name) && Files.isDirectory(directory)) {
+                            watchPartition(directory);
+                            continue;
+                        }
+                        if (!name.endsWith(".log")) {
+                            continue;
+                        }
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                            remove(name);
+                        } else {
+                            refresh(name);
+                        }
+                    }
+                    if (!key.reset()) {
+                        if (key.watchable().equals(logDirPath)) {
+                            System.err.println("Log index stopped: log directory is no longer accessible");
+                            return;
+                        }
+                        watchedDirectories.remove((Path) key.watchable()); // A removed partition
+                    }
+                }
+                if (dirty && System.currentTimeMillis() - lastSaveMillis >= SAVE_INTERVAL_MILLIS) {
+                    save();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Error updating log index: " + e.getMessage());
+            }
+        }
+    }
+
+    private static boolean isPartition(String name) {
+        return name.startsWith(LogLayout.EQUIPMENT_PREFIX) || name.startsWith(LogLayout.DATE_PREFIX);
+    }
+
+    // Compare every log file with the index and re-index what changed, and watch every
+    // directory holding log files
+    private void rescan() throws IOException {
+        List<Path> directories = layout.directories();
+        for (Path directory : directories) {
+            watch(directory);
+        }
+        Set<String> present = new HashSet<>();
+        for (Path entry : LogLayout.logFiles(directories)) {
+            String name = entry.getFileName().toString();
+            present.add(name);
+            refresh(name);
+        }
+
+        List<String> missing = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (String name : files.keySet()) {
+                if (!present.contains(name)) {
+                    missing.add(name);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (String name : missing) {
+            remove(name);
+        }
+    }
+
+    // Index whatever is new in a file: only the appended tail when it grew, everything when it was rewritten
+    private void refresh(String name) throws IOException {
+        Path file = layout.resolve(name);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            remove(name);
+            return;
+        }
+        if (!attributes.isRegularFile()) {
+            return;
+        }
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+
+        long fromOffset;
+        lock.readLock().lock();
+        try {
+            FileEntry entry = files.get(name);
+            if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+                return;
+            }
+            // A file that only grew was appended to; anything else is indexed again from the start
+            fromOffset = entry != null && size > entry.size ? entry.indexedSize : 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (fromOffset == 0) {
+            remove(name);
+        }
+
+        Map<String, Offsets> found = new HashMap<>();
+        long indexedSize = tokenize(file, fromOffset, found);
+
+        lock.writeLock().lock();
+        try {
+            FileEntry entry = files.get(name);
+            if (entry == null) {
+                entry = new FileEntry();
+                files.put(name, entry);
+                for (String token : fileNameTokens(name)) {
+                    nameTokens.computeIfAbsent(token, t -> new HashSet<>()).add(name);
+                }
+            }
+            entry.size = size;
+            entry.lastModified = lastModified;
+            entry.indexedSize = indexedSize;
+            for (Map.Entry<String, Offsets> posting : found.entrySet()) {
+                contentTokens.computeIfAbsent(posting.getKey(), t -> new HashMap<>())
+                        .computeIfAbsent(name, n -> new Offsets())
+                        .addAll(posting.getValue());
+                entry.tokens.add(posting.getKey());
+            }
+            dirty = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void remove(String name) {
+        lock.writeLock().lock();
+        try {
+            FileEntry entry = files.remove(name);
+            if (entry == null) {
+                return;
+            }
+            for (String token : fileNameTokens(name)) {
+                Set<String> names = nameTokens.get(token);
+                if (names != null && names.remove(name) && names.isEmpty()) {
+                    nameTokens.remove(token);
+                }
+            }
+            for (String token : entry.tokens) {
+                Map<String, Offsets> postings = contentTokens.get(token);
+                if (postings != null && postings.remove(name) != null && postings.isEmpty()) {
+                    contentTokens.remove(token);
+                }
+            }
+            dirty = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Tokenize complete lines from the offset on; returns the offset after the last complete line
+    private static long tokenize(Path file, long fromOffset, Map<String, Offsets> found) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            List<String> lineTokens = new ArrayList<>();
+            StringBuilder token = new StringBuilder();
+            long position = fromOffset;
+            long lineStart = fromOffset;
+
+            while (channel.read(buffer, position) > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (isTokenByte(b)) {
+                        token.append((char) Character.toLowerCase(b));
+                        continue;
+                    }
+                    endToken(token, lineTokens);
+                    if (b == '\n') {
+                        for (String lineToken : lineTokens) {
+                            found.computeIfAbsent(lineToken, t -> new Offsets()).addDistinct(lineStart);
+                        }
+                        lineTokens.clear();
+                        lineStart = position + buffer.position();
+                    }
+                }
+                position += buffer.limit();
+                buffer.clear();
+            }
+            // A trailing line without a newline is still being written; index it on the next change
+            return lineStart;
+        }
+    }
+
+    private static boolean isTokenByte(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '-' || b == '_';
+    }
+
+    private static void endToken(StringBuilder token, List<String> lineTokens) {
+        if (token.length() == 0) {
+            return;
+        }
+        String value = token.toString();
+        lineTokens.add(value);
+        // Dates inside longer tokens (e.g. 2024-11-01t10) are indexed on their own as well
+        if (value.length() > 10) {
+            Matcher matcher = DATE.matcher(value);
+            while (matcher.find()) {
+                lineTokens.add(matcher.group());
+            }
+        }
+        token.setLength(0);
+    }
+
+    // Tokens of a file name: the name itself, its parts and any dates it contains
+    private static Set<String> fileNameTokens(String name) {
+        Set<String> tokens = new HashSet<>();
+        String baseName = name.substring(0, name.length() - ".log".length());
+        tokens.add(baseName.toLowerCase(Locale.ROOT));
+        for (String part : baseName.split("[^A-Za-z0-9]+")) {
+            if (!part.isEmpty()) {
+                tokens.add(part.toLowerCase(Locale.ROOT));
+            }
+        }
+        Matcher matcher = DATE.matcher(baseName);
+        while (matcher.find()) {
+            tokens.add(matcher.group());
+        }
+        return tokens;
+    }
+
+    // Write the index to a temporary file and atomically replace the previous one. Only the snapshot
+    // is taken under the read lock; it shares the offset arrays, so writers are not held up while
+    // the index is serialized and written.
+    private void save() throws IOException {
+        Path tempPath = indexFilePath.resolveSibling(INDEX_FILE_NAME + ".tmp");
+        Map<String, long[]> fileSnapshot;
+        Map<String, Map<String, Offsets>> tokenSnapshot;
+        lock.readLock().lock();
+        try {
+            fileSnapshot = new HashMap<>(files.size() * 2);
+            for (Map.Entry<String, FileEntry> file : files.entrySet()) {
+                FileEntry entry = file.getValue();
+                fileSnapshot.put(file.getKey(), new long[] {entry.size, entry.lastModified, entry.indexedSize});
+            }
+            tokenSnapshot = new HashMap<>(contentTokens.size() * 2);
+            for (Map.Entry<String, Map<String, Offsets>> token : contentTokens.entrySet()) {
+                Map<String, Offsets> postings = new HashMap<>(token.getValue().size() * 2);
+                for (Map.Entry<String, Offsets> posting : token.getValue().entrySet()) {
+                    postings.put(posting.getKey(), posting.getValue().snapshot());
+                }
+                tokenSnapshot.put(token.getKey(), postings);
+            }
+            dirty = false; // Changes from here on are in the next save
+        } finally {
+            lock.readLock().unlock();
+        }
+        try {
+            write(tempPath, fileSnapshot, tokenSnapshot);
+            Files.move(tempPath, indexFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true; // Try again at the next save
+            throw e;
+        }
+        lastSaveMillis = System.currentTimeMillis();
+    }
+
+    private static void write(Path tempPath, Map<String, long[]> fileSnapshot,
+                              Map<String, Map<String, Offsets>> tokenSnapshot) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(fileSnapshot.size());
+            for (Map.Entry<String, long[]> file : fileSnapshot.entrySet()) {
+                writeString(out, file.getKey());
+                for (long value : file.getValue()) {
+                    out.writeLong(value);
+                }
+            }
+            out.writeInt(tokenSnapshot.size());
+            for (Map.Entry<String, Map<String, Offsets>> token : tokenSnapshot.entrySet()) {
+                writeString(out, token.getKey());
+                out.writeInt(token.getValue().size());
+                for (Map.Entry<String, Offsets> posting : token.getValue().entrySet()) {
+                    writeString(out, posting.getKey());
+                    posting.getValue().writeTo(out);
+                }
+            }
+        }
+    }
+
+    // Read a previously saved index; an unreadable index is discarded and rebuilt by the rescan
+    private void load() {
+        if (Files.notExists(indexFilePath)) {
+            return;
+        }
+        lock.writeLock().lock();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFilePath)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("unsupported index format");
+            }
+            int fileCount = in.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                String name = readString(in);
+                FileEntry entry = new FileEntry();
+                entry.size = in.readLong();
+                entry.lastModified = in.readLong();
+                entry.indexedSize = in.readLong();
+                files.put(name, entry);
+                for (String token : fileNameTokens(name)) {
+                    nameTokens.computeIfAbsent(token, t -> new HashSet<>()).add(name);
+                }
+            }
+            int tokenCount = in.readInt();
+            for (int i = 0; i < tokenCount; i++) {
+                String token = readString(in);
+                int postingCount = in.readInt();
+                Map<String, Offsets> postings = new HashMap<>(postingCount * 2);
+                for (int j = 0; j < postingCount; j++) {
+                    String name = readString(in);
+                    postings.put(name, Offsets.readFrom(in));
+                    files.get(name).tokens.add(token);
+                }
+                contentTokens.put(token, postings);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Discarding unreadable log index: " + e.getMessage());
+            files.clear();
+            nameTokens.clear();
+            contentTokens.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Strings are written as length-prefixed UTF-8 because writeUTF is limited to 64 KB
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("negative string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // What has been indexed for one file
+    private static class FileEntry {
+        private long size;
+        private long lastModified;
+        private long indexedSize; // Offset after the last complete line that was indexed
+        private final Set<String> tokens = new HashSet<>();
+    }
+
+    // Growable list of line offsets, kept as primitives
+    private static class Offsets {
+        private long[] values = new long[4];
+        private int count;
+
+        void addDistinct(long offset) {
+            if (count > 0 && values[count - 1] == offset) {
+                return;
+            }
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = offset;
+        }
+
+        void addAll(Offsets other) {
+            for (int i = 0; i < other.count; i++) {
+                addDistinct(other.values[i]);
+            }
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, count);
+        }
+
+        // The offsets added so far. Offsets are only ever appended, so the copy can share the array.
+        Offsets snapshot() {
+            Offsets snapshot = new Offsets();
+            snapshot.values = values;
+            snapshot.count = count;
+            return snapshot;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(values[i]);
+            }
+        }
+
+        static Offsets readFrom(DataInputStream in) throws IOException {
+            Offsets offsets = new Offsets();
+            int count = in.readInt();
+            offsets.values = new long[Math.max(4, count)];
+            for (int i = 0; i < count; i++) {
+                offsets.values[i] = in.readLong();
+            }
+            offsets.count = count;
+            return offsets;
+        }
+    }
+}
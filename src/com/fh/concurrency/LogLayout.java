@@ -0,0 +1,243 @@
+package com.fh.concurrency;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+// Where the files of a log directory (~/Documents/<logDirectory>) live. In the flat layout every
+// file is directly in the log directory. In the partitioned layout a file is placed by its name
+// in <log directory>/equipment=<equipment>/date=<yyyy-MM-dd>/, where the equipment is the part of
+// the name before the first '_' or '.' and the date is the first yyyy-MM-dd in the name; files
+// without a date go directly into their equipment partition. Searches by date or equipment then
+// only list the partitions that can match instead of one huge directory. Archived logs are kept
+// in an archive directory next to the file they came from.
+//   -Dems.layout=flat|partitioned   (default flat; convert existing directories with Main --migrate-layout)
+public class LogLayout {
+
+    public enum Mode {
+        FLAT,
+        PARTITIONED
+    }
+
+    public static final String LAYOUT_PROPERTY = "ems.layout";
+    static final String EQUIPMENT_PREFIX = "equipment=";
+    static final String DATE_PREFIX = "date=";
+    private static final Pattern DATE = Pattern.compile("\\d{4}-\\d{2}-\\d{2}");
+
+    private final Path root;
+    private final Mode mode;
+
+    public LogLayout(Path root, Mode mode) {
+        this.root = root;
+        this.mode = mode;
+    }
+
+    // The layout of ~/Documents/<logDirectory>, as configured by the system property
+    public static LogLayout of(String logDirectory) {
+        Mode mode = "partitioned".equalsIgnoreCase(System.getProperty(LAYOUT_PROPERTY)) ? Mode.PARTITIONED : Mode.FLAT;
+        return of(logDirectory, mode);
+    }
+
+    public static LogLayout of(String logDirectory, Mode mode) {
+        String homeDirectory = System.getProperty("user.home");
+        return new LogLayout(Paths.get(homeDirectory, "Documents", logDirectory), mode);
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    // Where the file with this name lives
+    public Path resolve(String fileName) {
+        if (mode == Mode.FLAT) {
+            return root.resolve(fileName);
+        }
+        Path partition = root.resolve(EQUIPMENT_PREFIX + equipmentOf(fileName));
+        String date = dateOf(fileName);
+        if (date != null) {
+            partition = partition.resolve(DATE_PREFIX + date);
+        }
+        return partition.resolve(fileName);
+    }
+
+    // The directory holding the file with this name
+    public Path directoryFor(String fileName) {
+        return resolve(fileName).getParent();
+    }
+
+    // Where an archived copy of a log lives: the archive directory next to the log
+    public Path archiveFor(Path logFile) {
+        return logFile.resolveSibling(LogArchiver.ARCHIVE_DIRECTORY).resolve(logFile.getFileName() + LogArchiver.EXTENSION);
+    }
+
+    // The part of a file name before the first '_' or '.'
+    static String equipmentOf(String fileName) {
+        int end = 0;
+        while (end < fileName.length() && fileName.charAt(end) != '_' && fileName.charAt(end) != '.') {
+            end++;
+        }
+        return end > 0 ? fileName.substring(0, end) : "_";
+    }
+
+    // The first yyyy-MM-dd in a file name, or null
+    static String dateOf(String fileName) {
+        Matcher matcher = DATE.matcher(fileName);
+        return matcher.find() ? matcher.group() : null;
+    }
+
+    // Every directory that holds log files. Listing them fails with NoSuchFileException when the
+    // log directory does not exist.
+    public List<Path> directories() throws IOException {
+        return directories(null, null);
+    }
+
+    // The directories that can hold files of an equipment matching the pattern and, when a date
+    // (yyyy-MM-dd) is given, of that date. A null pattern or date matches any. Only the equipment
+    // partitions that match are listed, and with a date only that date's partition is opened.
+    public List<Path> directories(Pattern equipment, String date) throws IOException {
+        List<Path> directories = new ArrayList<>();
+        if (mode == Mode.FLAT) {
+            directories.add(root);
+            return directories;
+        }
+        boolean exactDate = date != null && DATE.matcher(date).matches();
+        for (Path partition : subdirectories(root, EQUIPMENT_PREFIX)) {
+            String name = partition.getFileName().toString().substring(EQUIPMENT_PREFIX.length());
+            if (equipment != null && !equipment.matcher(name).matches()) {
+                continue;
+            }
+            if (exactDate) {
+                Path datePartition = partition.resolve(DATE_PREFIX + date);
+                if (Files.isDirectory(datePartition)) {
+                    directories.add(datePartition);
+                }
+            } else {
+                directories.add(partition);
+                directories.addAll(subdirectories(partition, DATE_PREFIX));
+            }
+        }
+        return directories;
+    }
+
+    // The directories for any of the criteria of a name search. A date selects its date
+    // partitions and a criterion without digits is an equipment name pattern (matched as
+    // .*criterion.* against the equipment, like the searches match names); anything else, e.g. part
+    // of a date, may match any part of a name and selects every directory.
+    public List<Path> directoriesFor(List<String> criteria) throws IOException {
+        if (mode == Mode.FLAT) {
+            return directories();
+        }
+        Set<Path> directories = new LinkedHashSet<>();
+        for (String criterion : criteria) {
+            if (DATE.matcher(criterion).matches()) {
+                directories.addAll(directories(null, criterion));
+            } else if (criterion.chars().noneMatch(Character::isDigit)) {
+                directories.addAll(directories(Pattern.compile(".*" + criterion + ".*"), null));
+            } else {
+                return directories();
+            }
+        }
+        return new ArrayList<>(directories);
+    }
+
+    // The *.log files in the directories
+    public static List<Path> logFiles(List<Path> directories) throws IOException {
+        return filesIn(directories, "*.log");
+    }
+
+    // The archived logs (<name>.log.gz) kept next to the directories
+    public static List<Path> archivedLogs(List<Path> directories) throws IOException {
+        List<Path> archiveDirectories = new ArrayList<>();
+        for (Path directory : directories) {
+            Path archive = directory.resolve(LogArchiver.ARCHIVE_DIRECTORY);
+            if (Files.isDirectory(archive)) {
+                archiveDirectories.add(archive);
+            }
+        }
+        return filesIn(archiveDirectories, "*.log" + LogArchiver.EXTENSION);
+    }
+
+    private static List<Path> filesIn(List<Path> directories, String glob) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Path directory : directories) {
+            // Using try-with-resources to ensure proper resource management
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+                for (Path entry : stream) {
+                    files.add(entry);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static List<Path> subdirectories(Path directory, String prefix) throws IOException {
+        List<Path> subdirectories = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                entry -> entry.getFileName().toString().startsWith(prefix) && Files.isDirectory(entry))) {
+            for (Path entry : stream) {
+                subdirectories.add(entry);
+            }
+        }
+        return subdirectories;
+    }
+
+    // Move every file of the log directory to where the target layout puts it; returns the number
+    // of files moved. Files already in place are left alone, so an interrupted migration can be
+    // run again. Run it while nothing else uses the log directory.
+    public static long migrate(String logDirectory, Mode target) throws IOException {
+        LogLayout layout = of(logDirectory, target);
+        Path root = layout.getRoot();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile).toList();
+        }
+
+        long moved = 0;
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(".tmp") || (name.startsWith(".") && file.getParent().equals(root))) {
+                continue; // Leftovers of interrupted writes, and the log index (keyed by file name)
+            }
+            Path destination;
+            if (file.getParent().getFileName().toString().equals(LogArchiver.ARCHIVE_DIRECTORY) && name.endsWith(LogArchiver.EXTENSION)) {
+                String logName = name.substring(0, name.length() - LogArchiver.EXTENSION.length());
+                destination = layout.archiveFor(layout.resolve(logName));
+            } else {
+                destination = layout.resolve(name);
+            }
+            if (!destination.equals(file)) {
+                Files.createDirectories(destination.getParent());
+                Files.move(file, destination, StandardCopyOption.ATOMIC_MOVE);
+                moved++;
+            }
+        }
+        removeEmptyDirectories(root);
+        return moved;
+    }
+
+    // Partitions and archive directories left empty by a migration
+    private static void removeEmptyDirectories(Path root) throws IOException {
+        List<Path> directories;
+        try (Stream<Path> walk = Files.walk(root)) {
+            directories = walk.filter(Files::isDirectory).filter(directory -> !directory.equals(root)).toList();
+        }
+        // Deepest first, so a partition is empty once its date partitions are gone
+        for (int i = directories.size() - 1; i >= 0; i--) {
+            try (Stream<Path> entries = Files.list(directories.get(i))) {
+                if (entries.findAny().isEmpty()) {
+                    Files.delete(directories.get(i));
+                }
+            }
+        }
+    }
+}
@@ -1,115 +1,279 @@
 package com.fh.concurrency;
 
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.PathMatcher;
 import java.nio.file.StandardCopyOption;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.time.Instant;
-import java.util.Date;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+// Creates, deletes, moves and archives log files. The bulk variants take a list of file names or
+// a glob and work on a bounded number of files at a time on the shared executor, so retention
+// sweeps and migrations of many files do not run one file after the other. They print nothing per
+// file and return a BulkResult with the outcome for each file; one failed file does not stop the
+// others. The calling thread handles files too and only waits for files other threads have
+// started, so a bulk operation may itself run on the executor.
+//   -Dems.bulk.threads=<n>   (files handled at the same time by a bulk operation, default 8)
 public class LogManager {
+    public static final String BULK_THREADS_PROPERTY = "ems.bulk.threads";
+    private static final OperationMetrics CREATE = EMSMetrics.operation("log.create");
+    private static final OperationMetrics DELETE = EMSMetrics.operation("log.delete");
+    private static final OperationMetrics MOVE = EMSMetrics.operation("log.move");
+    private static final OperationMetrics ARCHIVE = EMSMetrics.operation("log.archive");
+    private static final OperationMetrics BULK_CREATE = EMSMetrics.operation("log.bulkCreate");
+    private static final OperationMetrics BULK_DELETE = EMSMetrics.operation("log.bulkDelete");
+    private static final OperationMetrics BULK_MOVE = EMSMetrics.operation("log.bulkMove");
 
     private String logDirectory;
+    private final LogLayout layout;
+    private final int bulkConcurrency;
+    private final EMSExecutor executor;
 
     public LogManager(String logDirectory) {
+        this(logDirectory, Integer.getInteger(BULK_THREADS_PROPERTY, 8), EMSExecutor.shared());
+    }
+
+    public LogManager(String logDirectory, int bulkConcurrency, EMSExecutor executor) {
         this.logDirectory = logDirectory;
+        this.layout = LogLayout.of(logDirectory);
+        this.bulkConcurrency = Math.max(1, bulkConcurrency);
+        this.executor = executor;
     }
 
     // Create a new log file
     public void createLogFile(String fileName) {
+        long start = System.nanoTime();
+        boolean succeeded = false;
         try {
-            // Build the full path
-            String homeDirectory = System.getProperty("user.home");
-            Path logFilePath = Paths.get(homeDirectory, "Documents", logDirectory, fileName);
-
-            // Ensure directories exist
-            Files.createDirectories(logFilePath.getParent());
-
-            // Create the file if it doesn't exist
-            if (Files.notExists(logFilePath)) {
-                Files.createFile(logFilePath);
-                System.out.println("Log file created: " + logFilePath);
+            BulkResult.FileResult result = create(fileName);
+            if (result.getStatus() == BulkResult.Status.DONE) {
+                System.out.println("Log file created: " + result.getPath());
             } else {
-                System.out.println("Log file already exists: " + logFilePath);
+                System.out.println("Log file already exists: " + result.getPath());
             }
+            succeeded = true;
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            CREATE.record(start, succeeded);
         }
     }
 
+    // Attempted first and the directories created only when missing, so creating a file in an
+    // existing directory takes a single file system call
+    private BulkResult.FileResult create(String fileName) throws IOException {
+        Path logFilePath = layout.resolve(fileName);
+        try {
+            try {
+                Files.createFile(logFilePath);
+            } catch (NoSuchFileException e) {
+                Files.createDirectories(logFilePath.getParent());
+                Files.createFile(logFilePath);
+            }
+        } catch (FileAlreadyExistsException e) {
+            return BulkResult.FileResult.skipped(fileName, logFilePath, "already exists");
+        }
+        return BulkResult.FileResult.done(fileName, logFilePath);
+    }
+
     // Delete a log file
     public void deleteLogFile(String fileName) {
+        long start = System.nanoTime();
+        boolean succeeded = false;
         try {
-            String homeDirectory = System.getProperty("user.home");
-            Path logFilePath = Paths.get(homeDirectory, "Documents", logDirectory, fileName);
-
-            if (Files.exists(logFilePath)) {
-                Files.delete(logFilePath);
-                System.out.println("Log file deleted: " + logFilePath);
+            BulkResult.FileResult result = delete(fileName);
+            if (result.getStatus() == BulkResult.Status.DONE) {
+                System.out.println("Log file deleted: " + result.getPath());
             } else {
                 System.out.println("Log file does not exist: " + fileName);
             }
+            succeeded = true;
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            DELETE.record(start, succeeded);
         }
     }
 
+    private BulkResult.FileResult delete(String fileName) throws IOException {
+        Path logFilePath = layout.resolve(fileName);
+        if (!Files.deleteIfExists(logFilePath)) {
+            return BulkResult.FileResult.skipped(fileName, logFilePath, "does not exist");
+        }
+        LogBloomFilter.deleted(logFilePath);
+        return BulkResult.FileResult.done(fileName, logFilePath);
+    }
+
     // Move a log file
     public void moveLogFile(String fileName, String targetDirectory) {
+        long start = System.nanoTime();
+        boolean succeeded = false;
         try {
-            String homeDirectory = System.getProperty("user.home");
-            Path logFilePath = Paths.get(homeDirectory, "Documents", logDirectory, fileName);
-            Path targetPath = Paths.get(homeDirectory, "Documents", targetDirectory, fileName);
-
-            if (Files.exists(logFilePath)) {
-                Files.createDirectories(targetPath.getParent());
-                Files.move(logFilePath, targetPath, StandardCopyOption.REPLACE_EXISTING);
-                System.out.println("Log file moved to: " + targetPath);
+            // Placed by the configured layout in both directories
+            BulkResult.FileResult result = move(fileName, LogLayout.of(targetDirectory));
+            if (result.getStatus() == BulkResult.Status.DONE) {
+                System.out.println("Log file moved to: " + result.getPath());
             } else {
                 System.out.println("Log file does not exist: " + fileName);
             }
+            succeeded = true;
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            MOVE.record(start, succeeded);
         }
     }
 
-    // Archive log files older than a specified number of days
-    public void archiveOldLogs(int daysOld) {
+    private BulkResult.FileResult move(String fileName, LogLayout target) throws IOException {
+        Path logFilePath = layout.resolve(fileName);
+        Path targetPath = target.resolve(fileName);
         try {
-            String homeDirectory = System.getProperty("user.home");
-            Path logDirectoryPath = Paths.get(homeDirectory, "Documents", logDirectory);
-            Path archiveDirectoryPath = Paths.get(homeDirectory, "Documents", logDirectory, "archive");
+            try {
+                moveReplacing(logFilePath, targetPath);
+            } catch (NoSuchFileException e) {
+                if (Files.notExists(logFilePath)) {
+                    return BulkResult.FileResult.skipped(fileName, logFilePath, "does not exist");
+                }
+                Files.createDirectories(targetPath.getParent());
+                moveReplacing(logFilePath, targetPath);
+            }
+        } catch (NoSuchFileException e) {
+            return BulkResult.FileResult.skipped(fileName, logFilePath, "does not exist"); // Removed meanwhile
+        }
+        LogBloomFilter.moved(logFilePath, targetPath);
+        return BulkResult.FileResult.done(fileName, targetPath);
+    }
 
-            // Ensure the archive directory exists
-            Files.createDirectories(archiveDirectoryPath);
+    // A rename, so the file appears complete at the target at once, when both paths are on the
+    // same file system; a copy followed by a delete otherwise. An existing target is replaced.
+    private static void moveReplacing(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
 
-            // Iterate over the files in the log directory
-            Files.list(logDirectoryPath).forEach(file -> {
-                try {
-                    // Get file attributes to determine the creation time
-                    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
-                    Instant fileTime = attributes.creationTime().toInstant();
-
-                    // Calculate the file's age
-                    //long fileAgeInDays = TimeUnit.DAYS.convert(Date.from(Instant.now()).getTime() - Date.from(fileTime).getTime(), TimeUnit.MILLISECONDS);
-                    long fileAgeInMinutes = TimeUnit.MINUTES.convert(Date.from(Instant.now()).getTime() - Date.from(fileTime).getTime(), TimeUnit.MILLISECONDS);
-
-                    if (fileAgeInMinutes > 5 && !Files.isDirectory(file)) { //if (fileAgeInDays > daysOld && !Files.isDirectory(file))
-                        // Move the file to the archive directory
-                        Path archivedFilePath = archiveDirectoryPath.resolve(file.getFileName());
-                        Files.move(file, archivedFilePath, StandardCopyOption.REPLACE_EXISTING);
-                        System.out.println("Archived file: " + file.getFileName());
+    // The names of the files in the log directory (in every partition of the partitioned layout)
+    // matching the glob, e.g. "*_2024-0[1-6]-*.log"
+    public List<String> matchLogFiles(String glob) throws EMSException {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        List<String> fileNames = new ArrayList<>();
+        try {
+            for (Path directory : layout.directories()) {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                        entry -> matcher.matches(entry.getFileName()) && Files.isRegularFile(entry))) {
+                    for (Path entry : stream) {
+                        fileNames.add(entry.getFileName().toString());
                     }
-                } catch (IOException e) {
-                    e.printStackTrace();
                 }
-            });
-
+            }
         } catch (IOException e) {
+            throw new EMSFileReadException("Error reading log directory: " + layout.getRoot(), e);
+        }
+        return fileNames;
+    }
+
+    // Create the log files that do not exist yet
+    public BulkResult createLogFiles(List<String> fileNames) {
+        return runBulk("create", BULK_CREATE, fileNames, this::create);
+    }
+
+    public BulkResult deleteLogFiles(List<String> fileNames) {
+        return runBulk("delete", BULK_DELETE, fileNames, this::delete);
+    }
+
+    // Delete the log files matching the glob
+    public BulkResult deleteLogFiles(String glob) throws EMSException {
+        return deleteLogFiles(matchLogFiles(glob));
+    }
+
+    // Move log files to where the configured layout puts them in the target directory
+    public BulkResult moveLogFiles(List<String> fileNames, String targetDirectory) {
+        LogLayout target = LogLayout.of(targetDirectory);
+        return runBulk("move", BULK_MOVE, fileNames, fileName -> move(fileName, target));
+    }
+
+    // Move the log files matching the glob
+    public BulkResult moveLogFiles(String glob, String targetDirectory) throws EMSException {
+        return moveLogFiles(matchLogFiles(glob), targetDirectory);
+    }
+
+    private interface FileOperation {
+        BulkResult.FileResult apply(String fileName) throws IOException;
+    }
+
+    // Each worker takes the next file until none is left, so at most bulkConcurrency files are
+    // handled at the same time; the operation counts as failed when any file failed. The calling
+    // thread is one of the workers, so the files get done even when no executor thread is free
+    // (e.g. when called from an executor task); workers starting late find nothing left to do.
+    private BulkResult runBulk(String name, OperationMetrics metrics, List<String> fileNames, FileOperation operation) {
+        long start = System.nanoTime();
+        BulkResult.FileResult[] results = new BulkResult.FileResult[fileNames.size()];
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(results.length);
+        Runnable worker = () -> {
+            int index;
+            while ((index = next.getAndIncrement()) < results.length) {
+                String fileName = fileNames.get(index);
+                try {
+                    results[index] = operation.apply(fileName);
+                } catch (IOException | RuntimeException e) {
+                    results[index] = BulkResult.FileResult.failed(fileName, e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        for (int i = 1; i < Math.min(bulkConcurrency, fileNames.size()); i++) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                break; // The calling thread does the rest
+            }
+        }
+        worker.run();
+        // Wait for the files other workers are still on; the latch publishes their results
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        BulkResult result = new BulkResult(name, results, System.nanoTime() - start);
+        metrics.record(start, result.count(BulkResult.Status.FAILED) == 0);
+        return result;
+    }
+
+    // Archive log files not modified for more than the given number of days: each one is
+    // compressed into the archive directory in parallel and the original removed
+    public void archiveOldLogs(int daysOld) {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            BulkResult result = new LogArchiver(logDirectory).archive(daysOld);
+            System.out.println("Archived " + result.count(BulkResult.Status.DONE) + " log files older than " + daysOld + " days");
+            result.getFailures().forEach(failure -> System.err.println("Error archiving " + failure));
+            succeeded = result.count(BulkResult.Status.FAILED) == 0;
+        } catch (EMSException e) {
             e.printStackTrace();
+        } finally {
+            ARCHIVE.record(start, succeeded);
         }
     }
 }
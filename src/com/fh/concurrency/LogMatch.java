@@ -0,0 +1,34 @@
+package com.fh.concurrency;
+
+import java.nio.file.Path;
+
+// A single line found by a content search, with the file it came from and its byte offset
+public class LogMatch {
+    private final Path file;
+    private final long offset;
+    private final String line;
+
+    public LogMatch(Path file, long offset, String line) {
+        this.file = file;
+        this.offset = offset;
+        this.line = line;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    // Byte offset of the start of the line within the file
+    public long getOffset() {
+        return offset;
+    }
+
+    public String getLine() {
+        return line;
+    }
+
+    @Override
+    public String toString() {
+        return file + ":" + offset + ": " + line;
+    }
+}
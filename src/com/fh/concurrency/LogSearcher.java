@@ -1,35 +1,84 @@
 package com.fh.concurrency;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.*;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
-public class LogSearcher extends Thread {
+public class LogSearcher implements Runnable {
+    private static final OperationMetrics SEARCH_BY_DATE = EMSMetrics.operation("search.date");
+    private static final OperationMetrics SEARCH_BY_EQUIPMENT = EMSMetrics.operation("search.equipment");
+    private static final OperationMetrics SEARCH_BATCH = EMSMetrics.operation("search.batch");
+    private static final OperationMetrics SEARCH_INDEX = EMSMetrics.operation("search.index");
+    private static final OperationMetrics SEARCH_CONTENT = EMSMetrics.operation("search.content");
+    private static final OperationMetrics OPEN_LOG_FILE = EMSMetrics.operation("log.open");
+
     private final String logDirectory;
     private final Metadata metadata;
     private final String searchCriteria;
+    private final LogIndex index; // Optional; searches list the directory when null
+    private final EMSExecutor executor;
+    private boolean includeArchived; // Also search the compressed logs in the archive directory
     private List<String> searchResults = new ArrayList<>();
 
     public LogSearcher(String logDirectory, Metadata metadata, String searchCriteria) {
+        this(logDirectory, metadata, searchCriteria, null);
+    }
+
+    public LogSearcher(String logDirectory, Metadata metadata, String searchCriteria, LogIndex index) {
+        this(logDirectory, metadata, searchCriteria, index, EMSExecutor.shared());
+    }
+
+    public LogSearcher(String logDirectory, Metadata metadata, String searchCriteria, LogIndex index, EMSExecutor executor) {
         this.logDirectory = logDirectory;
         this.metadata = metadata;
         this.searchCriteria = searchCriteria;
+        this.index = index;
+        this.executor = executor;
+    }
+
+    // Include archived (gzip-compressed) logs in searches; they are decompressed as they are read
+    public void setIncludeArchived(boolean includeArchived) {
+        this.includeArchived = includeArchived;
+    }
+
+    // Search by date or equipment, depending on the criteria, on the executor
+    public CompletableFuture<List<String>> searchAsync() {
+        return executor.supply(this::search);
+    }
+
+    // Search by date or equipment, depending on the criteria
+    public List<String> search() throws EMSException {
+        if (searchCriteria.matches("\\d{4}-\\d{2}-\\d{2}")) {
+            return searchByDate(searchCriteria);
+        }
+        return searchByEquipment(searchCriteria);
     }
 
+    // Search the contents of all log files for the criteria on the executor
+    public CompletableFuture<List<LogMatch>> searchContentAsync() {
+        return executor.supply(() -> searchContent(searchCriteria));
+    }
+
+    // Run the search and print its results
     @Override
     public void run() {
         try {
-            if (searchCriteria.matches("\\d{4}-\\d{2}-\\d{2}")) {
-                searchResults = searchByDate(searchCriteria);
-            } else {
-                searchResults = searchByEquipment(searchCriteria);
-            }
+            searchResults = search();
 
             // Print search results
             if (searchResults.isEmpty()) {
@@ -45,6 +94,18 @@ public class LogSearcher extends Thread {
 
     // Method to search by date
     public List<String> searchByDate(String date) throws EMSException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            List<String> result = findByDate(date);
+            succeeded = true;
+            return result;
+        } finally {
+            SEARCH_BY_DATE.record(start, succeeded);
+        }
+    }
+
+    private List<String> findByDate(String date) throws EMSException {
         List<String> matchedFiles = new ArrayList<>();
         String regex = ".*" + date + ".*\\.log$";
         Pattern pattern;
@@ -57,13 +118,16 @@ public class LogSearcher extends Thread {
             throw new EMSInvalidRegexException("Invalid date format for search pattern", e);
         }
 
-        String homeDirectory = System.getProperty("user.home");
-        Path logDirPath = Paths.get(homeDirectory, "Documents", logDirectory);
-
-        // Using try-with-resources to ensure proper resource management
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(logDirPath, "*.log")) {
-            for (Path entry : stream) {
-                Matcher matcher = pattern.matcher(entry.getFileName().toString());
+        try {
+            // Look the date up in the index when there is one, otherwise list the directories that
+            // can hold it (only the date partitions in the partitioned layout)
+            List<Path> directories = LogLayout.of(logDirectory).directories(null, date);
+            List<Path> candidates = new ArrayList<>(index != null ? index.filesForDate(date) : LogLayout.logFiles(directories));
+            if (includeArchived) {
+                candidates.addAll(LogLayout.archivedLogs(directories));
+            }
+            for (Path entry : candidates) {
+                Matcher matcher = pattern.matcher(archivedName(entry));
                 if (matcher.matches()) {
                     matchedFiles.add(entry.toString());
                 }
@@ -71,13 +135,6 @@ public class LogSearcher extends Thread {
             // Log the search operation in metadata
             metadata.logSearch(date, "searched by date");
 
-            if (matchedFiles.isEmpty()) {
-                System.out.println("No log files found for the date: " + date);
-            } else {
-                System.out.println("Files found:");
-                matchedFiles.forEach(System.out::println);
-            }
-
         } catch (NoSuchFileException e) {
             // Throw specific file not found exception
             throw new EMSFileNotFoundException("Log directory not found", e);
@@ -94,6 +151,18 @@ public class LogSearcher extends Thread {
 
     // Method to search by equipment name
     public List<String> searchByEquipment(String equipmentName) throws EMSException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            List<String> result = findByEquipment(equipmentName);
+            succeeded = true;
+            return result;
+        } finally {
+            SEARCH_BY_EQUIPMENT.record(start, succeeded);
+        }
+    }
+
+    private List<String> findByEquipment(String equipmentName) throws EMSException {
         List<String> matchedFiles = new ArrayList<>();
         String regex = ".*" + equipmentName + ".*\\.log$";
         Pattern pattern;
@@ -106,13 +175,16 @@ public class LogSearcher extends Thread {
             throw new EMSInvalidRegexException("Invalid equipment name format for search pattern", e);
         }
 
-        String homeDirectory = System.getProperty("user.home");
-        Path logDirPath = Paths.get(homeDirectory, "Documents", logDirectory);
-
-        // Using try-with-resources to ensure proper resource management
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(logDirPath, "*.log")) {
-            for (Path entry : stream) {
-                Matcher matcher = pattern.matcher(entry.getFileName().toString());
+        try {
+            // Match against the index's name table when there is one, otherwise list the directories
+            // that can hold it (only the matching equipment partitions in the partitioned layout)
+            List<Path> directories = LogLayout.of(logDirectory).directoriesFor(List.of(equipmentName));
+            List<Path> candidates = new ArrayList<>(index != null ? index.filesMatching(pattern) : LogLayout.logFiles(directories));
+            if (includeArchived) {
+                candidates.addAll(LogLayout.archivedLogs(directories));
+            }
+            for (Path entry : candidates) {
+                Matcher matcher = pattern.matcher(archivedName(entry));
                 if (matcher.matches()) {
                     matchedFiles.add(entry.toString());
                 }
@@ -120,13 +192,198 @@ public class LogSearcher extends Thread {
             // Log the search operation in metadata
             metadata.logSearch(equipmentName, "searched by equipment");
 
-            if (matchedFiles.isEmpty()) {
-                System.out.println("No log files found for equipment: " + equipmentName);
+        } catch (NoSuchFileException e) {
+            // Throw specific file not found exception
+            throw new EMSFileNotFoundException("Log directory not found", e);
+        } catch (IOException e) {
+            // Handle general I/O exceptions with a custom exception
+            throw new EMSFileReadException("Error reading log directory or files", e);
+        } catch (Exception e) {
+            // Catch any unexpected exceptions
+            throw new EMSException("Unexpected error during search", e);
+        }
+
+        return matchedFiles;
+    }
+
+    // Search for many dates and equipment names at once. The log files are listed once (or taken
+    // from the index) and every name is checked against all criteria in a single pass: criteria
+    // without regex metacharacters go through one Aho-Corasick matcher, the others are matched
+    // one by one as before. Results are grouped per criterion, in the order given; a criterion
+    // given twice is searched and reported once.
+    public Map<String, List<String>> searchBatch(List<String> criteria) throws EMSException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            Map<String, List<String>> result = findBatch(criteria);
+            succeeded = true;
+            return result;
+        } finally {
+            SEARCH_BATCH.record(start, succeeded);
+        }
+    }
+
+    private Map<String, List<String>> findBatch(List<String> requested) throws EMSException {
+        // Repeated criteria would add every matching file to the same result list more than once
+        List<String> criteria = new ArrayList<>(new LinkedHashSet<>(requested));
+        Map<String, List<String>> results = new LinkedHashMap<>();
+        List<String> literals = new ArrayList<>();
+        Map<String, Pattern> patterns = new LinkedHashMap<>();
+
+        for (String criterion : criteria) {
+            results.put(criterion, new ArrayList<>());
+            if (LogContentScanner.isLiteral(criterion)) {
+                literals.add(criterion);
             } else {
-                System.out.println("Files found:");
-                matchedFiles.forEach(System.out::println);
+                try {
+                    patterns.put(criterion, Pattern.compile(".*" + criterion + ".*\\.log$"));
+                } catch (PatternSyntaxException e) {
+                    // Throw a specific exception for invalid regex
+                    throw new EMSInvalidRegexException("Invalid search pattern: " + criterion, e);
+                }
+            }
+        }
+        AhoCorasickMatcher matcher = new AhoCorasickMatcher(literals);
+
+        try {
+            // Only the partitions some criterion can match are listed
+            List<Path> directories = LogLayout.of(logDirectory).directoriesFor(criteria);
+            List<Path> candidates = new ArrayList<>(index != null ? index.indexedFiles() : LogLayout.logFiles(directories));
+            if (includeArchived) {
+                candidates.addAll(LogLayout.archivedLogs(directories));
+            }
+            for (Path entry : candidates) {
+                String name = archivedName(entry);
+                if (!name.endsWith(".log")) {
+                    continue;
+                }
+                // A criterion matches when it occurs before the .log extension, as in the single searches
+                BitSet found = matcher.matches(name.substring(0, name.length() - ".log".length()));
+                for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1)) {
+                    results.get(literals.get(i)).add(entry.toString());
+                }
+                for (Map.Entry<String, Pattern> pattern : patterns.entrySet()) {
+                    if (pattern.getValue().matcher(name).matches()) {
+                        results.get(pattern.getKey()).add(entry.toString());
+                    }
+                }
+            }
+            // Log the search operations in metadata
+            for (String criterion : criteria) {
+                metadata.logSearch(criterion, criterion.matches("\\d{4}-\\d{2}-\\d{2}") ? "searched by date" : "searched by equipment");
             }
 
+        } catch (NoSuchFileException e) {
+            // Throw specific file not found exception
+            throw new EMSFileNotFoundException("Log directory not found", e);
+        } catch (IOException e) {
+            // Handle general I/O exceptions with a custom exception
+            throw new EMSFileReadException("Error reading log directory or files", e);
+        }
+
+        return results;
+    }
+
+    // Run a batch search on the executor
+    public CompletableFuture<Map<String, List<String>>> searchBatchAsync(List<String> criteria) {
+        return executor.supply(() -> searchBatch(criteria));
+    }
+
+    // Method to look up a token (equipment name, date, fault code, ...) in the log index
+    public List<LogMatch> searchIndex(String token) throws EMSException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            List<LogMatch> result = findInIndex(token);
+            succeeded = true;
+            return result;
+        } finally {
+            SEARCH_INDEX.record(start, succeeded);
+        }
+    }
+
+    private List<LogMatch> findInIndex(String token) throws EMSException {
+        if (index == null) {
+            throw new EMSException("No log index available for: " + logDirectory);
+        }
+
+        List<LogMatch> matches;
+        try {
+            matches = index.lookup(token);
+            // Log the search operation in metadata
+            metadata.logSearch(token, "searched by index");
+        } catch (IOException e) {
+            // Handle general I/O exceptions with a custom exception
+            throw new EMSFileReadException("Error reading indexed log files", e);
+        }
+
+        return matches;
+    }
+
+    // Method to search the contents of all log files under the log directory
+    public List<LogMatch> searchContent(String criteria) throws EMSException {
+        return searchContent(criteria, null, null);
+    }
+
+    // Search the contents for lines with a timestamp in [from, to); a null bound is open. Rotated
+    // energy log segments whose span lies outside the range, as recorded in their manifest, are
+    // not read at all. When a bound is given, lines without a timestamp are left out.
+    public List<LogMatch> searchContent(String criteria, Instant from, Instant to) throws EMSException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            List<LogMatch> result = findInContent(criteria,
+                    from != null ? from.toEpochMilli() : Long.MIN_VALUE, to != null ? to.toEpochMilli() : Long.MAX_VALUE);
+            succeeded = true;
+            return result;
+        } finally {
+            SEARCH_CONTENT.record(start, succeeded);
+        }
+    }
+
+    private List<LogMatch> findInContent(String criteria, long fromMillis, long toMillis) throws EMSException {
+        boolean bounded = fromMillis != Long.MIN_VALUE || toMillis != Long.MAX_VALUE;
+        Pattern pattern;
+
+        try {
+            // Compile the regex pattern
+            pattern = Pattern.compile(criteria);
+        } catch (PatternSyntaxException e) {
+            // Throw a specific exception for invalid regex
+            throw new EMSInvalidRegexException("Invalid content search pattern", e);
+        }
+
+        LogLayout layout = LogLayout.of(logDirectory);
+        List<LogMatch> matches;
+
+        // Using try-with-resources to ensure the directory walk is closed (it covers every partition)
+        try (Stream<Path> files = Files.walk(layout.getRoot())) {
+            Set<Path> outOfRange = bounded ? segmentsOutside(layout.directories(), fromMillis, toMillis) : Set.of();
+            List<Path> logFiles = files
+                    .filter(file -> archivedName(file).endsWith(".log") && Files.isRegularFile(file))
+                    .filter(file -> includeArchived || !file.getFileName().toString().endsWith(LogArchiver.EXTENSION))
+                    .filter(file -> !outOfRange.contains(file))
+                    .collect(Collectors.toList());
+            // Files whose Bloom filter rules out a literal criteria are not opened
+            int[] trigrams = LogBloomFilter.trigramsOf(criteria);
+            if (trigrams != null) {
+                logFiles = LogBloomFilter.mayContain(logFiles, trigrams);
+            }
+
+            // Scan the files in parallel, each large file split into chunks
+            matches = new LogContentScanner(pattern).scan(logFiles);
+            if (bounded) {
+                matches = matches.stream()
+                        .filter(match -> {
+                            long timestamp = EnergyReading.timestampOf(match.getLine());
+                            return timestamp != Long.MIN_VALUE && timestamp >= fromMillis && timestamp < toMillis;
+                        })
+                        .collect(Collectors.toList());
+            }
+
+            // Log the search operation in metadata
+            metadata.logSearch(criteria, "searched by content");
+
         } catch (NoSuchFileException e) {
             // Throw specific file not found exception
             throw new EMSFileNotFoundException("Log directory not found", e);
@@ -138,23 +395,53 @@ public class LogSearcher extends Thread {
             throw new EMSException("Unexpected error during search", e);
         }
 
-        return matchedFiles;
+        return matches;
+    }
+
+    // Rotated segments, and their archives, whose manifest span does not overlap [fromMillis, toMillis)
+    private static Set<Path> segmentsOutside(List<Path> directories, long fromMillis, long toMillis) throws IOException {
+        Set<Path> outside = new HashSet<>();
+        for (Path directory : directories) {
+            Path archiveDirPath = directory.resolve(LogArchiver.ARCHIVE_DIRECTORY);
+            for (EnergyLogManifest manifest : EnergyLogManifest.all(directory)) {
+                for (EnergyLogManifest.Segment segment : manifest.sealedSegments()) {
+                    if (!segment.overlaps(fromMillis, toMillis)) {
+                        outside.add(directory.resolve(segment.fileName));
+                        outside.add(archiveDirPath.resolve(segment.fileName + LogArchiver.EXTENSION));
+                    }
+                }
+            }
+        }
+        return outside;
+    }
+
+    // The file name of a log, without the compression suffix of an archived log
+    private static String archivedName(Path file) {
+        String name = file.getFileName().toString();
+        return name.endsWith(LogArchiver.EXTENSION) ? name.substring(0, name.length() - LogArchiver.EXTENSION.length()) : name;
     }
 
     // Method to open and display the contents of a log file
     public void openLogFile(String fileName) throws EMSException {
-        String homeDirectory = System.getProperty("user.home");
-        Path logFilePath = Paths.get(homeDirectory, "Documents", logDirectory, fileName);
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            printLogFile(fileName);
+            succeeded = true;
+        } finally {
+            OPEN_LOG_FILE.record(start, succeeded);
+        }
+    }
+
+    private void printLogFile(String fileName) throws EMSException {
+        Path logFilePath = LogLayout.of(logDirectory).resolve(fileName);
 
         // Check if the file exists
         if (Files.exists(logFilePath)) {
-            // Using try-with-resources to ensure resource management
-            try (BufferedReader reader = Files.newBufferedReader(logFilePath)) {
-                String line;
+            // Served from the shared cache while the file is unchanged; files too large to cache are streamed
+            try {
                 System.out.println("\nContents of " + fileName + ":");
-                while ((line = reader.readLine()) != null) {
-                    System.out.println(line);
-                }
+                LogCache.shared().forEachLine(logFilePath, System.out::println);
                 // Log the operation in metadata
                 metadata.logOperation(fileName, "Log file opened");
             } catch (IOException e) {
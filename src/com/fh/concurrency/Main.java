@@ -1,21 +1,70 @@
 package com.fh.concurrency;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.stream.Stream;
 
 public class Main {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        // Headless load-generator mode: Main --workload [options], see WorkloadDriver
+        if (args.length > 0 && args[0].equals("--workload")) {
+            WorkloadDriver.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // Offline conversion of a log directory: Main --migrate-layout <log directory> flat|partitioned
+        if (args.length > 0 && args[0].equals("--migrate-layout")) {
+            migrateLayout(args);
+            return;
+        }
+
         // Setting up the log directory and creating necessary objects
         String logDirectory = "logs";
         Metadata metadata = new Metadata();
         LogManager logManager = new LogManager(logDirectory);
 
-        // Initialize Battery with 100 capacity and 3 max concurrent usage slots
-        Battery battery = new Battery(100.0, 3); 
+        // Shared executor for searches and battery operations (-Dems.executor=platform|virtual)
+        EMSExecutor executor = EMSExecutor.shared();
+
+        // Initialize Battery with 100 capacity and 3 max concurrent usage slots, starting from the
+        // charge recovered from its journal; without the journal it starts empty and is not persisted
+        BatteryJournal batteryJournal = new BatteryJournal("battery");
+        Battery battery;
+        try {
+            batteryJournal.open();
+            battery = new Battery(100.0, 3, batteryJournal);
+            System.out.printf("Recovered battery charge %.2f (%d journal records replayed in %.1f ms)%n",
+                    battery.getCurrentCharge(), batteryJournal.getReplayedRecords(), batteryJournal.getRecoveryNanos() / 1e6);
+        } catch (EMSException e) {
+            System.err.println("Battery journal unavailable, starting with an empty battery: " + e.getMessage());
+            batteryJournal = null;
+            battery = new Battery(100.0, 3);
+        }
 
         EnergyDataExchange energyDataExchange = new EnergyDataExchange(logDirectory, metadata);
 
+        // Index of the log directory, kept current in the background; searches fall back to listing without it
+        LogIndex logIndex = new LogIndex(logDirectory);
+        try {
+            logIndex.start();
+        } catch (EMSException e) {
+            System.err.println("Log index unavailable, searching without it: " + e.getMessage());
+            logIndex = null;
+        }
+        final LogIndex searchIndex = logIndex;
+
+        // Periodic metrics snapshots when -Dems.metrics.interval is set
+        EMSMetrics.startReporting();
+
         Scanner scanner = new Scanner(System.in);
         boolean running = true;
 
@@ -24,7 +73,10 @@ public class Main {
                     "1. Create Log File\n2. Delete Log File\n3. Move Log File\n" +
                     "4. Archive Old Logs\n5. Log Energy Data\n6. Retrieve Energy Data\n" +
                     "7. Search Log Files by Date\n8. Search Log Files by Equipment Name\n" +
-                    "9. Open Log File\n10. Charge Battery\n11. Use Energy from Battery\n0. Exit\nChoose an option: ");
+                    "9. Open Log File\n10. Charge Battery\n11. Use Energy from Battery\n" +
+                    "12. Search Log File Contents\n13. Look Up Token in Log Index\n" +
+                    "14. Convert Energy Data to Binary Format\n15. Show Operation Metrics\n16. Show Energy Aggregates\n17. Export Equipment Logs\n" +
+                    "18. Follow Energy Data\n0. Exit\nChoose an option: ");
 
             String input = scanner.nextLine();
 
@@ -39,17 +91,25 @@ public class Main {
                         break;
 
                     case 2: // Delete log file
-                        System.out.print("Enter log file name to delete: ");
+                        System.out.print("Enter log file name or glob (e.g. *_2024-0[1-6]-*.log) to delete: ");
                         String deleteFileName = scanner.nextLine();
-                        logManager.deleteLogFile(deleteFileName);
+                        if (isGlob(deleteFileName)) {
+                            printBulkResult(logManager.deleteLogFiles(deleteFileName));  // Many files in parallel
+                        } else {
+                            logManager.deleteLogFile(deleteFileName);
+                        }
                         break;
 
                     case 3: // Move log file
-                        System.out.print("Enter log file name to move: ");
+                        System.out.print("Enter log file name or glob to move: ");
                         String moveFileName = scanner.nextLine();
                         System.out.print("Enter new directory to move the file: ");
                         String newDirectory = scanner.nextLine();
-                        logManager.moveLogFile(moveFileName, newDirectory);
+                        if (isGlob(moveFileName)) {
+                            printBulkResult(logManager.moveLogFiles(moveFileName, newDirectory));  // Many files in parallel
+                        } else {
+                            logManager.moveLogFile(moveFileName, newDirectory);
+                        }
                         break;
 
                     case 4: // Archive old logs files
@@ -70,46 +130,33 @@ public class Main {
                     case 6: // Retrieve and display energy data
                         System.out.print("Enter equipment name to retrieve energy data: ");
                         String retrieveEquipment = scanner.nextLine();
-                        List<String> data = energyDataExchange.retrieveEnergyData(retrieveEquipment);
+                        System.out.print("Enter how many of the latest readings to show (empty for all): ");
+                        String lastCount = scanner.nextLine().trim();
                         System.out.println("Energy data for " + retrieveEquipment + ":");
-                        data.forEach(System.out::println);
+                        if (lastCount.isEmpty()) {
+                            // Streamed line by line, so large logs are never held in memory
+                            try (Stream<String> data = energyDataExchange.streamEnergyData(retrieveEquipment)) {
+                                data.forEach(System.out::println);
+                            }
+                        } else {
+                            energyDataExchange.retrieveLastReadings(retrieveEquipment, Integer.parseInt(lastCount))
+                                    .forEach(System.out::println);
+                        }
                         break;
 
 
                     case 7: // Search for log files by date
-                        System.out.println("Starting multiple searches for logs by date...");
-                        String[] searchDates = {"2024-11-01", "2024-10-25", "2024-09-15", "2024-08-10", "2024-07-05"};
-                        for (String searchDate : searchDates) {
-                            Thread dateSearchThread = new Thread(() -> {
-                                LogSearcher dateSearcher = new LogSearcher(logDirectory, metadata, searchDate);
-                                System.out.println("Searching for logs with date: " + searchDate);
-                                dateSearcher.start();  // Start the thread for searching by date
-                            });
-                            dateSearchThread.start();
-                            try {
-                                Thread.sleep(1000); // Sleep for 1 second to stagger the searches and show concurrency
-                            } catch (InterruptedException e) {
-                                Thread.currentThread().interrupt();
-                            }
-                        }
+                        System.out.println("Searching for logs by date...");
+                        List<String> searchDates = List.of("2024-11-01", "2024-10-25", "2024-09-15", "2024-08-10", "2024-07-05");
+                        LogSearcher dateSearcher = new LogSearcher(logDirectory, metadata, searchDates.get(0), searchIndex);
+                        printBatchResults(dateSearcher.searchBatch(searchDates));  // All dates in one pass over the log files
                         break;
 
                     case 8: // Search for log files by equipment name
-                        System.out.println("Starting multiple searches for logs by equipment...");
-                        String[] searchEquipmentNames = {"SolarPanel", "WindTurbine", "HydroGenerator", "BatteryStorage", "SolarInverter"};
-                        for (String equipmentNam : searchEquipmentNames) {
-                            Thread equipmentSearchThread = new Thread(() -> {
-                                LogSearcher equipmentSearcher = new LogSearcher(logDirectory, metadata, equipmentNam);
-                                System.out.println("Searching for logs related to equipment: " + equipmentNam);
-                                equipmentSearcher.start();  // Start the thread for searching by equipment name
-                            });
-                            equipmentSearchThread.start();
-                            try {
-                                Thread.sleep(1500); // Sleep for 1.5 seconds to stagger the searches and show concurrency
-                            } catch (InterruptedException e) {
-                                Thread.currentThread().interrupt();
-                            }
-                        }
+                        System.out.println("Searching for logs by equipment...");
+                        List<String> searchEquipmentNames = List.of("SolarPanel", "WindTurbine", "HydroGenerator", "BatteryStorage", "SolarInverter");
+                        LogSearcher equipmentSearcher = new LogSearcher(logDirectory, metadata, searchEquipmentNames.get(0), searchIndex);
+                        printBatchResults(equipmentSearcher.searchBatch(searchEquipmentNames));  // All names in one pass over the log files
                         break;
 
                     case 9: // Open and display a specific log file
@@ -123,38 +170,84 @@ public class Main {
                         System.out.println("Starting multiple battery charging operations...");
                         double[] chargeAmounts = {100, 200, 150, 50, 300}; // Different charge amounts
                         String[] energySources = {"Solar", "Wind", "Hydro", "Geothermal", "Nuclear"}; // Different energy sources
+                        List<CompletableFuture<Double>> charges = new ArrayList<>();
                         for (int i = 0; i < chargeAmounts.length; i++) {
-                            final double chargeAmount = chargeAmounts[i];
-                            final String source = energySources[i];
-                            Thread chargeThread = new Thread(() -> {
-                                System.out.println("Charging with " + source + " energy. Amount: " + chargeAmount);
-                                battery.startCharging(chargeAmount, source); // Start the charging thread
-                                // The logChargingActivity method will be called inside the Battery class via the ChargingThread
-                            });
-                            chargeThread.start();
-                            try {
-                                Thread.sleep(2000); // Sleep for 2 seconds to stagger the charging operations
-                            } catch (InterruptedException e) {
-                                Thread.currentThread().interrupt();
-                            }
+                            String source = energySources[i];
+                            System.out.println("Charging with " + source + " energy. Amount: " + chargeAmounts[i]);
+                            charges.add(battery.startCharging(chargeAmounts[i], source)); // Runs concurrently on the shared executor and logs the activity
                         }
+                        awaitAll(charges);
                         break;
 
                     case 11: // Use energy from the battery
                         System.out.println("Starting multiple battery usage operations...");
                         double[] useAmounts = {50, 75, 100, 25, 30}; // Different energy usage amounts
+                        List<CompletableFuture<UsageResult>> usages = new ArrayList<>();
                         for (double useAmount : useAmounts) {
-                            Thread usageThread = new Thread(() -> {
-                                System.out.println("Attempting to use " + useAmount + " energy.");
-                                battery.startUsingEnergy(useAmount);  // Start the usage thread
-                            });
-                            usageThread.start();
-                            try {
-                                Thread.sleep(2500); // Sleep for 2.5 seconds to stagger the usage operations
-                            } catch (InterruptedException e) {
-                                Thread.currentThread().interrupt();
-                            }
+                            System.out.println("Attempting to use " + useAmount + " energy.");
+                            usages.add(battery.startUsingEnergy(useAmount));  // Runs concurrently on the shared executor
                         }
+                        awaitAll(usages);
+                        break;
+
+                    case 12: // Search the contents of all log files
+                        System.out.print("Enter text or pattern to search for in log files: ");
+                        String contentCriteria = scanner.nextLine();
+                        System.out.print("Include archived logs? (y/n): ");
+                        boolean includeArchived = scanner.nextLine().trim().equalsIgnoreCase("y");
+                        LogSearcher contentSearcher = new LogSearcher(logDirectory, metadata, contentCriteria);
+                        contentSearcher.setIncludeArchived(includeArchived);
+                        List<LogMatch> contentMatches = contentSearcher.searchContent(contentCriteria);  // Scans all log files in parallel
+                        printMatches(contentCriteria, contentMatches);
+                        break;
+
+                    case 13: // Look up a token in the log index
+                        System.out.print("Enter equipment name, date or token to look up: ");
+                        String indexToken = scanner.nextLine();
+                        LogSearcher indexSearcher = new LogSearcher(logDirectory, metadata, indexToken, searchIndex);
+                        printMatches(indexToken, indexSearcher.searchIndex(indexToken));
+                        break;
+
+                    case 14: // Convert an equipment's text log to the binary time-series format
+                        System.out.print("Enter equipment name to convert: ");
+                        String convertEquipment = scanner.nextLine();
+                        energyDataExchange.convertToBinary(convertEquipment);
+                        break;
+
+                    case 15: // Latency percentiles, counts and errors per operation type (also available over JMX)
+                        System.out.print(EMSMetrics.snapshot());
+                        break;
+
+                    case 16: // Rolling sum/count/min/max/mean/last per window, kept up to date as data is logged
+                        System.out.print("Enter equipment name to show aggregates for: ");
+                        String aggregateEquipment = scanner.nextLine();
+                        System.out.println("Energy aggregates for " + aggregateEquipment + ":");
+                        energyDataExchange.aggregates(aggregateEquipment).forEach(System.out::println);
+                        break;
+
+                    case 17: // Concatenate an equipment's logs into one file without copying them through the heap
+                        System.out.print("Enter equipment name to export: ");
+                        String exportEquipment = scanner.nextLine();
+                        System.out.print("Enter date to export (YYYY-MM-DD, empty for all): ");
+                        String exportDate = scanner.nextLine().trim();
+                        System.out.print("Enter target file: ");
+                        Path exportTarget = Paths.get(scanner.nextLine().trim());
+                        System.out.print("Resume a partial export? (y/n): ");
+                        boolean resumeExport = scanner.nextLine().trim().equalsIgnoreCase("y");
+                        long exported = new LogExporter(logDirectory, metadata, searchIndex)
+                                .export(exportEquipment, exportDate.isEmpty() ? null : exportDate, exportTarget, resumeExport);
+                        System.out.println("Exported " + exported + " bytes to " + exportTarget);
+                        break;
+
+                    case 18: // Push new lines of equipment logs as they are appended, until Enter is pressed
+                        System.out.print("Enter equipment names to follow (comma-separated): ");
+                        List<String> followEquipment = Arrays.stream(scanner.nextLine().split(","))
+                                .map(String::trim).filter(name -> !name.isEmpty()).toList();
+                        PrintingSubscriber follower = new PrintingSubscriber();
+                        energyDataExchange.tail(followEquipment).subscribe(follower);
+                        System.out.println("Following " + followEquipment + "; press Enter to stop.");
+                        scanner.nextLine();
+                        follower.cancel();
                         break;
 
                     case 0: // Exit
@@ -171,5 +264,97 @@ public class Main {
         }
 
         scanner.close();
+        energyDataExchange.close();
+        if (searchIndex != null) {
+            searchIndex.close();
+        }
+        metadata.close();
+        executor.close();
+        // After the executor, so battery operations still running are journaled
+        if (batteryJournal != null) {
+            batteryJournal.close();
+        }
+    }
+
+    // Wait for concurrent operations before showing the menu again; failures were already reported
+    private static void awaitAll(List<? extends CompletableFuture<?>> operations) {
+        try {
+            CompletableFuture.allOf(operations.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            // Reported by the operation itself
+        }
+    }
+
+    private static void printBatchResults(Map<String, List<String>> results) {
+        results.forEach((criterion, files) -> {
+            if (files.isEmpty()) {
+                System.out.println("No results found for: " + criterion);
+            } else {
+                System.out.println("Search results for " + criterion + ":");
+                files.forEach(System.out::println);
+            }
+        });
+    }
+
+    // Prints the followed lines, requesting one at a time so it is never sent more than it prints
+    private static class PrintingSubscriber implements Flow.Subscriber<EnergyLogLine> {
+        private volatile Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(EnergyLogLine line) {
+            System.out.println(line);
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            System.err.println("Stopped following energy data: " + error.getMessage());
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        void cancel() {
+            if (subscription != null) {
+                subscription.cancel();
+            }
+        }
+    }
+
+    private static boolean isGlob(String fileName) {
+        return fileName.chars().anyMatch(c -> "*?[{".indexOf(c) >= 0);
+    }
+
+    // The summary, and the files that failed
+    private static void printBulkResult(BulkResult result) {
+        System.out.println(result);
+        result.getFailures().forEach(System.out::println);
+    }
+
+    private static void printMatches(String criteria, List<LogMatch> matches) {
+        if (matches.isEmpty()) {
+            System.out.println("No log lines found for: " + criteria);
+        } else {
+            System.out.println("Lines found:");
+            matches.forEach(System.out::println);
+        }
+    }
+
+    // Move the files of ~/Documents/<log directory> to the given layout; run it while the system is stopped
+    private static void migrateLayout(String[] args) throws IOException {
+        if (args.length != 3 || !(args[2].equalsIgnoreCase("flat") || args[2].equalsIgnoreCase("partitioned"))) {
+            System.err.println("Usage: Main --migrate-layout <log directory> flat|partitioned");
+            return;
+        }
+        LogLayout.Mode target = LogLayout.Mode.valueOf(args[2].toUpperCase());
+        long moved = LogLayout.migrate(args[1], target);
+        System.out.println("Moved " + moved + " files of ~/Documents/" + args[1] + " to the " + args[2].toLowerCase() + " layout");
     }
 }
@@ -4,34 +4,231 @@ package com.fh.concurrency;
 
 import java.io.*;
 import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Audit trail of file and search operations. Callers only put an entry into a lock-free ring
+// buffer; a single writer thread formats the entries in order, appends them to metadata.log
+// through one open writer and flushes periodically, so logging never opens a file on the caller.
+// Entries logged after close() are not written and count as dropped.
+public class Metadata implements AutoCloseable {
+
+    // What happens to a new entry when the ring buffer is full
+    public enum OverflowPolicy {
+        DROP,   // Discard the entry and count it
+        BLOCK   // Wait until the writer has made room
+    }
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    private static final OperationMetrics APPEND = EMSMetrics.operation("metadata.append");
+    private static final OperationMetrics FLUSH = EMSMetrics.operation("metadata.flush");
+    private static final long FLUSH_INTERVAL_MILLIS = 200;
+    // Same layout as java.util.Date#toString so existing metadata.log files stay uniform
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US).withZone(ZoneId.systemDefault());
 
-public class Metadata {
     private String metadataFile;
+    private final OverflowPolicy overflowPolicy;
+    private final AuditRingBuffer<Entry> buffer;
+    private final AtomicLong droppedEntries = new AtomicLong();
+    private final Thread writerThread;
+    private final Thread shutdownHook;
+    private volatile boolean writerWaiting;
+    private volatile boolean closed;
+    private final AtomicInteger publishing = new AtomicInteger(); // Appends past the closed check, not yet in the buffer
+
+    // Only used by the writer thread
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedTimestamp;
 
     public Metadata() {
-        this.metadataFile = "metadata.log";  // Metadata log file
+        this("metadata.log", OverflowPolicy.BLOCK, DEFAULT_CAPACITY);  // Metadata log file
+    }
+
+    public Metadata(String metadataFile, OverflowPolicy overflowPolicy, int capacity) {
+        this.metadataFile = metadataFile;
+        this.overflowPolicy = overflowPolicy;
+        this.buffer = new AuditRingBuffer<>(capacity);
+
+        // Started once every field is assigned; Thread.start publishes them to the writer
+        this.writerThread = new Thread(this::writeLoop, "metadata-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+
+        // Make sure buffered entries reach the file when the JVM exits without close()
+        this.shutdownHook = new Thread(this::close, "metadata-flush");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    // Same as the constructors, for callers that prefer a factory
+    public static Metadata open() {
+        return new Metadata();
+    }
+
+    public static Metadata open(String metadataFile, OverflowPolicy overflowPolicy, int capacity) {
+        return new Metadata(metadataFile, overflowPolicy, capacity);
     }
 
     // Method to log file operations (create, move, delete, archive)
     public void logOperation(String fileName, String operation) {
-        String logEntry = "File: " + fileName + " | Operation: " + operation + " | Timestamp: " + new Date();
-        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(metadataFile), StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
-            writer.write(logEntry + "\n");
-            System.out.println("Metadata logged: " + logEntry);
-        } catch (IOException e) {
-            System.err.println("Error logging metadata: " + e.getMessage());
-        }
+        append(new Entry(false, fileName, operation, System.currentTimeMillis()));
     }
 
     // Method to log search operations (search by date or equipment)
     public void logSearch(String searchTerm, String searchType) {
-        String logEntry = "Search Term: " + searchTerm + " | Search Type: " + searchType + " | Timestamp: " + new Date();
+        append(new Entry(true, searchTerm, searchType, System.currentTimeMillis()));
+    }
+
+    // Number of entries discarded because the buffer was full (DROP policy) or the log was closed
+    public long getDroppedEntries() {
+        return droppedEntries.get();
+    }
+
+    // Write all pending entries, flush the file and stop the writer thread
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // Already shutting down
+            }
+        }
+    }
+
+    // Timed on the caller's side; a dropped entry counts as an error. An entry is either dropped
+    // here, before it reaches the buffer, or written: the writer does not stop while an append
+    // that got past the closed check is still publishing.
+    private void append(Entry entry) {
+        long start = System.nanoTime();
+        publishing.incrementAndGet();
+        try {
+            if (closed) {
+                dropped(start);
+                return;
+            }
+            while (!buffer.offer(entry)) {
+                if (overflowPolicy == OverflowPolicy.DROP || closed) {
+                    dropped(start);
+                    return;
+                }
+                // Give the writer a chance to drain before trying again
+                LockSupport.unpark(writerThread);
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+            }
+        } finally {
+            publishing.decrementAndGet();
+        }
+        if (writerWaiting) {
+            LockSupport.unpark(writerThread);
+        }
+        APPEND.record(start, true);
+    }
+
+    private void dropped(long start) {
+        droppedEntries.incrementAndGet();
+        APPEND.record(start, false);
+    }
+
+    private void writeLoop() {
         try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(metadataFile), StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
-            writer.write(logEntry + "\n");
-            System.out.println("Search metadata logged: " + logEntry);
+            long lastFlush = System.currentTimeMillis();
+            boolean unflushed = false;
+            while (true) {
+                Entry entry = buffer.poll();
+                if (entry != null) {
+                    String logEntry = format(entry);
+                    writer.write(logEntry + "\n");
+                    System.out.println((entry.search ? "Search metadata logged: " : "Metadata logged: ") + logEntry);
+                    unflushed = true;
+                    continue;
+                }
+
+                long now = System.currentTimeMillis();
+                if (unflushed && (closed || now - lastFlush >= FLUSH_INTERVAL_MILLIS)) {
+                    long flushStart = System.nanoTime();
+                    boolean flushed = false;
+                    try {
+                        writer.flush();
+                        flushed = true;
+                    } finally {
+                        FLUSH.record(flushStart, flushed);
+                    }
+                    unflushed = false;
+                    lastFlush = now;
+                }
+                if (closed) {
+                    // Appends still publishing have seen closed as false, so their entries must be written
+                    if (publishing.get() == 0 && buffer.isEmpty()) {
+                        return;
+                    }
+                    Thread.onSpinWait();
+                    continue;
+                }
+
+                // Announce that we are about to park, then check once more so a producer's unpark is not missed
+                writerWaiting = true;
+                if (buffer.isEmpty() && !closed) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(unflushed ? FLUSH_INTERVAL_MILLIS : 1000));
+                }
+                writerWaiting = false;
+            }
         } catch (IOException e) {
-            System.err.println("Error logging search metadata: " + e.getMessage());
+            // Without a writer nothing drains the buffer, so stop accepting entries and count what
+            // is left, including entries still being published, as dropped
+            closed = true;
+            System.err.println("Error logging metadata: " + e.getMessage());
+            while (publishing.get() > 0 || !buffer.isEmpty()) {
+                if (buffer.poll() != null) {
+                    droppedEntries.incrementAndGet();
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+    }
+
+    private String format(Entry entry) {
+        // Entries arrive in bursts within the same second, so the formatted timestamp is reused
+        long second = entry.timestampMillis / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTimestamp = TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(entry.timestampMillis));
+        }
+        if (entry.search) {
+            return "Search Term: " + entry.subject + " | Search Type: " + entry.detail + " | Timestamp: " + cachedTimestamp;
+        }
+        return "File: " + entry.subject + " | Operation: " + entry.detail + " | Timestamp: " + cachedTimestamp;
+    }
+
+    // One audit entry as captured on the caller's thread; formatting happens on the writer thread
+    private static class Entry {
+        private final boolean search;
+        private final String subject;
+        private final String detail;
+        private final long timestampMillis;
+
+        Entry(boolean search, String subject, String detail, long timestampMillis) {
+            this.search = search;
+            this.subject = subject;
+            this.detail = detail;
+            this.timestampMillis = timestampMillis;
         }
     }
 }
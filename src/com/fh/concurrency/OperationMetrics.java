@@ -0,0 +1,81 @@
+package com.fh.concurrency;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Latency histogram, count and errors of one operation type. Call sites keep the instance in a
+// static field and time themselves:
+//   long start = System.nanoTime();
+//   ... record(start, succeeded)
+public class OperationMetrics implements OperationMetricsMBean {
+    private final String name;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+
+    OperationMetrics(String name) {
+        this.name = name;
+    }
+
+    // Record an operation that started at the given System.nanoTime()
+    public void record(long startNanos, boolean succeeded) {
+        latencies.record(System.nanoTime() - startNanos);
+        if (!succeeded) {
+            errors.increment();
+        }
+    }
+
+    public LatencyHistogram.Snapshot snapshot() {
+        return latencies.snapshot();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCount() {
+        return latencies.snapshot().getCount();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public double getErrorRate() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) getErrorCount() / count;
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return latencies.snapshot().getMean() / 1000.0;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return latencies.snapshot().getPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getP99Micros() {
+        return latencies.snapshot().getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getP999Micros() {
+        return latencies.snapshot().getPercentile(99.9) / 1000.0;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return latencies.snapshot().getMax() / 1000.0;
+    }
+
+    @Override
+    public void reset() {
+        latencies.reset();
+        errors.reset();
+    }
+}
@@ -0,0 +1,24 @@
+package com.fh.concurrency;
+
+// JMX view of the metrics of one operation type; latencies are in microseconds
+public interface OperationMetricsMBean {
+    String getName();
+
+    long getCount();
+
+    long getErrorCount();
+
+    double getErrorRate();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+
+    void reset();
+}
@@ -0,0 +1,54 @@
+package com.fh.concurrency;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// The rolling windows of one equipment. Readings are added and windows read under its lock,
+// which is only held for the few array updates of each window.
+class RollingAggregates {
+    private final RollingWindow[] windows;
+
+    RollingAggregates(List<RollingWindow> configured) {
+        this.windows = new RollingWindow[configured.size()];
+        for (int i = 0; i < windows.length; i++) {
+            windows[i] = configured.get(i).emptyCopy();
+        }
+    }
+
+    // Readings without a number are not counted
+    synchronized void add(long timestampMillis, double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        for (RollingWindow window : windows) {
+            window.add(timestampMillis, value);
+        }
+    }
+
+    synchronized List<EnergyAggregate> aggregates(long nowMillis) {
+        List<EnergyAggregate> result = new ArrayList<>(windows.length);
+        for (RollingWindow window : windows) {
+            result.add(window.aggregate(nowMillis));
+        }
+        return result;
+    }
+
+    // Null when no window has that name
+    synchronized EnergyAggregate aggregate(String name, long nowMillis) {
+        for (RollingWindow window : windows) {
+            if (window.getName().equals(name)) {
+                return window.aggregate(nowMillis);
+            }
+        }
+        return null;
+    }
+
+    // How far back readings can still count towards a window
+    long horizonMillis() {
+        long horizon = 0;
+        for (RollingWindow window : windows) {
+            horizon = Math.max(horizon, window.getLengthMillis());
+        }
+        return horizon;
+    }
+}
@@ -0,0 +1,157 @@
+package com.fh.concurrency;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Running aggregates of one equipment's readings over a time window, kept in a ring of time
+// buckets held in primitive arrays. A tumbling window is one bucket aligned to multiples of its
+// length (e.g. the current hour); a sliding window is split into SLIDING_BUCKETS buckets and
+// covers the last length of time, moving forward a bucket at a time. Adding a reading and
+// querying the window take constant time and never allocate, except for the query result.
+// Not thread-safe; RollingAggregates guards it.
+class RollingWindow {
+    static final int SLIDING_BUCKETS = 60;
+
+    private final String name;
+    private final boolean sliding;
+    private final long lengthMillis;
+    private final long bucketMillis;
+    private final long[] bucketStarts;
+    private final long[] counts;
+    private final double[] sums;
+    private final double[] mins;
+    private final double[] maxs;
+    private final long[] lastTimestamps;
+    private final double[] lastValues;
+
+    RollingWindow(String name, boolean sliding, long lengthMillis) {
+        if (lengthMillis <= 0) {
+            throw new IllegalArgumentException("Window length must be positive: " + name);
+        }
+        this.name = name;
+        this.sliding = sliding;
+        this.lengthMillis = lengthMillis;
+        int buckets = sliding ? (int) Math.min(SLIDING_BUCKETS, lengthMillis) : 1;
+        this.bucketMillis = sliding ? lengthMillis / buckets : lengthMillis;
+        this.bucketStarts = new long[buckets];
+        this.counts = new long[buckets];
+        this.sums = new double[buckets];
+        this.mins = new double[buckets];
+        this.maxs = new double[buckets];
+        this.lastTimestamps = new long[buckets];
+        this.lastValues = new double[buckets];
+        Arrays.fill(bucketStarts, Long.MIN_VALUE);
+    }
+
+    // Windows from a comma-separated list of <sliding|tumbling>:<length>, e.g. "sliding:1h,tumbling:1d";
+    // lengths are a number with a unit of ms, s, m, h or d
+    static List<RollingWindow> parseAll(String specs) {
+        List<RollingWindow> windows = new ArrayList<>();
+        for (String spec : specs.split(",")) {
+            spec = spec.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            int colon = spec.indexOf(':');
+            String kind = colon > 0 ? spec.substring(0, colon) : "";
+            if (!kind.equals("sliding") && !kind.equals("tumbling")) {
+                throw new IllegalArgumentException("Unknown window: " + spec + " (expected sliding:<length> or tumbling:<length>)");
+            }
+            windows.add(new RollingWindow(spec, kind.equals("sliding"), parseLength(spec.substring(colon + 1))));
+        }
+        return windows;
+    }
+
+    private static long parseLength(String length) {
+        int unitStart = 0;
+        while (unitStart < length.length() && Character.isDigit(length.charAt(unitStart))) {
+            unitStart++;
+        }
+        if (unitStart == 0) {
+            throw new IllegalArgumentException("Invalid window length: " + length);
+        }
+        long amount = Long.parseLong(length.substring(0, unitStart));
+        switch (length.substring(unitStart)) {
+            case "ms":
+                return amount;
+            case "s":
+                return TimeUnit.SECONDS.toMillis(amount);
+            case "m":
+                return TimeUnit.MINUTES.toMillis(amount);
+            case "h":
+                return TimeUnit.HOURS.toMillis(amount);
+            case "d":
+                return TimeUnit.DAYS.toMillis(amount);
+            default:
+                throw new IllegalArgumentException("Invalid window length: " + length);
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    long getLengthMillis() {
+        return lengthMillis;
+    }
+
+    // A new copy with no readings, for another equipment
+    RollingWindow emptyCopy() {
+        return new RollingWindow(name, sliding, lengthMillis);
+    }
+
+    void add(long timestampMillis, double value) {
+        long bucketStart = Math.floorDiv(timestampMillis, bucketMillis) * bucketMillis;
+        int i = (int) Math.floorMod(Math.floorDiv(timestampMillis, bucketMillis), (long) bucketStarts.length);
+        if (bucketStarts[i] != bucketStart) {
+            if (bucketStarts[i] > bucketStart) {
+                return; // Older than anything the window still covers
+            }
+            bucketStarts[i] = bucketStart;
+            counts[i] = 0;
+            sums[i] = 0;
+            mins[i] = Double.POSITIVE_INFINITY;
+            maxs[i] = Double.NEGATIVE_INFINITY;
+            lastTimestamps[i] = Long.MIN_VALUE;
+        }
+        counts[i]++;
+        sums[i] += value;
+        mins[i] = Math.min(mins[i], value);
+        maxs[i] = Math.max(maxs[i], value);
+        if (timestampMillis >= lastTimestamps[i]) {
+            lastTimestamps[i] = timestampMillis;
+            lastValues[i] = value;
+        }
+    }
+
+    // The aggregates of the window as of the given time: for a tumbling window the window that
+    // contains it, for a sliding window the buckets overlapping the preceding length of time
+    EnergyAggregate aggregate(long nowMillis) {
+        long currentBucket = Math.floorDiv(nowMillis, bucketMillis) * bucketMillis;
+        long from = currentBucket - (bucketStarts.length - 1) * bucketMillis;
+        long to = currentBucket + bucketMillis;
+        long count = 0;
+        double sum = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        long lastTimestamp = Long.MIN_VALUE;
+        double lastValue = Double.NaN;
+        for (int i = 0; i < bucketStarts.length; i++) {
+            if (bucketStarts[i] < from || bucketStarts[i] >= to || counts[i] == 0) {
+                continue;
+            }
+            count += counts[i];
+            sum += sums[i];
+            min = Math.min(min, mins[i]);
+            max = Math.max(max, maxs[i]);
+            if (lastTimestamps[i] >= lastTimestamp) {
+                lastTimestamp = lastTimestamps[i];
+                lastValue = lastValues[i];
+            }
+        }
+        return new EnergyAggregate(name, from, to, count, sum, count == 0 ? Double.NaN : min,
+                count == 0 ? Double.NaN : max, lastValue, lastTimestamp);
+    }
+}
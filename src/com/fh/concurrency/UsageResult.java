@@ -0,0 +1,86 @@
+package com.fh.concurrency;
+
+// Outcome of a request to use energy from a battery
+public class UsageResult {
+
+    public enum Status {
+        SERVED,
+        INSUFFICIENT_CHARGE,
+        OVERLOADED
+    }
+
+    // Why the admission controller turned a request down
+    public enum RejectionReason {
+        QUEUE_FULL("usage limit reached and the wait queue is full"),
+        DEADLINE_EXPIRED("no usage slot became free before the deadline"),
+        SHED("displaced from the wait queue by a higher-priority request");
+
+        private final String description;
+
+        RejectionReason(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    private final Status status;
+    private final double amount;
+    private final double remainingCharge;
+    private final RejectionReason rejectionReason;
+
+    private UsageResult(Status status, double amount, double remainingCharge, RejectionReason rejectionReason) {
+        this.status = status;
+        this.amount = amount;
+        this.remainingCharge = remainingCharge;
+        this.rejectionReason = rejectionReason;
+    }
+
+    static UsageResult served(double amount, double remainingCharge) {
+        return new UsageResult(Status.SERVED, amount, remainingCharge, null);
+    }
+
+    static UsageResult insufficientCharge(double amount, double currentCharge) {
+        return new UsageResult(Status.INSUFFICIENT_CHARGE, amount, currentCharge, null);
+    }
+
+    static UsageResult overloaded(double amount, double currentCharge, RejectionReason reason) {
+        return new UsageResult(Status.OVERLOADED, amount, currentCharge, reason);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isServed() {
+        return status == Status.SERVED;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    // Charge left after the request (or the charge seen when it was turned down)
+    public double getRemainingCharge() {
+        return remainingCharge;
+    }
+
+    // Why an overloaded request was turned down; null for any other status
+    public RejectionReason getRejectionReason() {
+        return rejectionReason;
+    }
+
+    @Override
+    public String toString() {
+        switch (status) {
+            case SERVED:
+                return "Used " + amount + " energy. Remaining charge: " + remainingCharge;
+            case INSUFFICIENT_CHARGE:
+                return "Insufficient charge!";
+            default:
+                return "System overload: " + rejectionReason.getDescription();
+        }
+    }
+}
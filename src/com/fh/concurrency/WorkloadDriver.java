@@ -0,0 +1,393 @@
+package com.fh.concurrency;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Headless load generator. Builds a synthetic log directory, then drives the Battery, LogSearcher,
+// EnergyDataExchange and LogManager APIs with a weighted mix of operations and reports throughput
+// and latency percentiles per operation.
+//
+// With a rate the load is open-loop: operations are scheduled at constant or Poisson-distributed
+// intervals regardless of how fast earlier ones complete, and handed to a pool of concurrency
+// threads. Response time is measured from the scheduled start, so time spent waiting behind slow
+// operations is included; service time is measured from the actual start. A large gap between the
+// two means the system did not keep up and is reported as a coordinated-omission warning.
+// Without a rate (--rate 0) each thread runs operations back to back (closed loop), which only
+// measures service time.
+//
+// Usage: Main --workload [--mix op=weight,...] [--rate <ops/s>] [--arrival constant|poisson]
+//                        [--concurrency <threads>] [--duration <seconds>] [--files <n>]
+//                        [--dir <log directory>] [--index on|off] [--seed <n>]
+public class WorkloadDriver {
+
+    public enum Arrival {
+        CONSTANT,
+        POISSON
+    }
+
+    private static final String DEFAULT_MIX = "battery.use=30,battery.charge=10,search.date=15,search.equipment=15,"
+            + "search.content=1,energy.log=20,energy.retrieve=7,log.create=1,log.delete=1";
+    private static final String[] EQUIPMENT = {"SolarPanel", "WindTurbine", "HydroGenerator", "BatteryStorage", "SolarInverter"};
+    private static final int DAYS = 365;
+    private static final int ENERGY_LINES = 1000;
+    private static final long DRAIN_TIMEOUT_SECONDS = 30;
+    // An operation is flagged when its response p99 is this many times its service p99, given enough
+    // samples and at least a millisecond of queueing, so noise in rare operations is not reported
+    private static final double OMISSION_RATIO = 2.0;
+    private static final long MIN_FLAGGED_COUNT = 100;
+    private static final long MIN_FLAGGED_QUEUEING_NANOS = 1_000_000;
+
+    private final Map<String, Integer> mix = new LinkedHashMap<>();
+    private double rate = 200;
+    private Arrival arrival = Arrival.POISSON;
+    private int concurrency = 8;
+    private long durationSeconds = 10;
+    private int files = 1000;
+    private String logDirectory = "workload-logs";
+    private boolean useIndex;
+    private long seed = System.nanoTime();
+
+    // Set up by prepare()
+    private Metadata metadata;
+    private LogIndex index;
+    private Battery battery;
+    private EnergyDataExchange exchange;
+    private LogSearcher searcher;
+    private LogManager logManager;
+    private String[] dates;
+    private final Queue<String> createdFiles = new ConcurrentLinkedQueue<>();
+    private final AtomicLong createdCount = new AtomicLong();
+
+    private final Map<String, Stats> stats = new LinkedHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        WorkloadDriver driver = new WorkloadDriver();
+        driver.parseArguments(args);
+        driver.run();
+    }
+
+    private void parseArguments(String[] args) {
+        String mixArgument = DEFAULT_MIX;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--mix":
+                    mixArgument = args[++i];
+                    break;
+                case "--rate":
+                    rate = Double.parseDouble(args[++i]);
+                    break;
+                case "--arrival":
+                    arrival = Arrival.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                    break;
+                case "--concurrency":
+                    concurrency = Integer.parseInt(args[++i]);
+                    break;
+                case "--duration":
+                    durationSeconds = Long.parseLong(args[++i]);
+                    break;
+                case "--files":
+                    files = Integer.parseInt(args[++i]);
+                    break;
+                case "--dir":
+                    logDirectory = args[++i];
+                    break;
+                case "--index":
+                    useIndex = "on".equalsIgnoreCase(args[++i]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown workload option: " + args[i]);
+            }
+        }
+        for (String entry : mixArgument.split(",")) {
+            String[] operation = entry.split("=", 2);
+            int weight = operation.length > 1 ? Integer.parseInt(operation[1].trim()) : 1;
+            if (weight > 0) {
+                mix.put(operation[0].trim(), weight);
+            }
+        }
+        for (String operation : mix.keySet()) {
+            stats.put(operation, new Stats());
+        }
+    }
+
+    public void run() throws Exception {
+        PrintStream console = System.out;
+        console.printf("Workload: %s, %s, %d threads, %d s, %d log files in ~/Documents/%s%n",
+                rate > 0 ? String.format("%.0f ops/s %s arrivals", rate, arrival.name().toLowerCase(Locale.ROOT)) : "closed loop",
+                mix, concurrency, durationSeconds, files, logDirectory);
+        console.println("Preparing the log directory...");
+        prepare();
+
+        // The system reports every operation on the console; keep that out of the run
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long elapsedNanos;
+        long backlog;
+        try {
+            long start = System.nanoTime();
+            backlog = rate > 0 ? runOpenLoop() : runClosedLoop();
+            elapsedNanos = System.nanoTime() - start;
+        } finally {
+            try {
+                cleanUp();
+            } finally {
+                System.setOut(console);
+            }
+        }
+        report(elapsedNanos, backlog);
+    }
+
+    // Synthetic log files named like the real ones, plus energy data for every equipment
+    private void prepare() throws Exception {
+        LogLayout layout = LogLayout.of(logDirectory);
+        Path logDirPath = layout.getRoot();
+        Files.createDirectories(logDirPath);
+        LocalDate firstDay = LocalDate.of(2024, 1, 1);
+        dates = new String[DAYS];
+        for (int day = 0; day < DAYS; day++) {
+            dates[day] = firstDay.plusDays(day).toString();
+        }
+        for (int i = 0; i < files; i++) {
+            Path file = layout.resolve(EQUIPMENT[i % EQUIPMENT.length] + "_" + dates[i % DAYS] + "_" + i + ".log");
+            if (Files.notExists(file)) {
+                Files.createDirectories(file.getParent());
+                Files.writeString(file, dates[i % DAYS] + " 10:00 reading " + i + (i % 100 == 0 ? " FAULT-E" + i % 7 : "") + "\n",
+                        StandardCharsets.UTF_8);
+            }
+        }
+
+        metadata = new Metadata(logDirPath.resolveSibling(logDirectory + "-metadata.log").toString(), Metadata.OverflowPolicy.DROP, Metadata.DEFAULT_CAPACITY);
+        if (useIndex) {
+            index = new LogIndex(logDirectory);
+            index.start();
+        }
+        battery = new Battery(1_000_000, concurrency);
+        battery.addCharge(500_000);
+        exchange = new EnergyDataExchange(logDirectory, metadata);
+        searcher = new LogSearcher(logDirectory, metadata, "", index);
+        logManager = new LogManager(logDirectory);
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (String equipment : EQUIPMENT) {
+                if (exchange.retrieveLastReadings(equipment, 1).isEmpty()) {
+                    for (int line = 0; line < ENERGY_LINES; line++) {
+                        exchange.logEnergyData(equipment, dates[line % DAYS] + " 10:00 " + line % 50);
+                    }
+                }
+            }
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    // Schedule operations at the requested rate; returns the operations still queued when the time was up
+    private long runOpenLoop() throws InterruptedException {
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), workerFactory());
+        Random random = new Random(seed);
+        double meanIntervalNanos = 1_000_000_000.0 / rate;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        double intended = start;
+
+        while (intended < end) {
+            long scheduled = (long) intended;
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            String operation = pick(random);
+            workers.execute(() -> execute(operation, scheduled));
+            intended += arrival == Arrival.CONSTANT
+                    ? meanIntervalNanos
+                    : -Math.log(1 - random.nextDouble()) * meanIntervalNanos;
+        }
+        long backlog = workers.getQueue().size();
+        workers.shutdown();
+        workers.awaitTermination(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        workers.shutdownNow();
+        return backlog;
+    }
+
+    // Every thread runs operations back to back
+    private long runClosedLoop() throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+        Thread[] threads = new Thread[concurrency];
+        for (int t = 0; t < concurrency; t++) {
+            Random random = new Random(seed + t);
+            threads[t] = workerFactory().newThread(() -> {
+                long now;
+                while ((now = System.nanoTime()) < end) {
+                    execute(pick(random), now);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return 0;
+    }
+
+    private static ThreadFactory workerFactory() {
+        AtomicLong threadNumber = new AtomicLong();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "workload-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private String pick(Random random) {
+        int total = 0;
+        for (int weight : mix.values()) {
+            total += weight;
+        }
+        int choice = random.nextInt(total);
+        for (Map.Entry<String, Integer> operation : mix.entrySet()) {
+            choice -= operation.getValue();
+            if (choice < 0) {
+                return operation.getKey();
+            }
+        }
+        throw new IllegalStateException("Empty operation mix");
+    }
+
+    private void execute(String operation, long scheduledNanos) {
+        Stats operationStats = stats.get(operation);
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            perform(operation, ThreadLocalRandom.current());
+            succeeded = true;
+        } catch (Exception e) {
+            operationStats.lastError = e;
+        } finally {
+            long end = System.nanoTime();
+            operationStats.service.record(end - start);
+            operationStats.response.record(end - scheduledNanos);
+            if (!succeeded) {
+                operationStats.errors.increment();
+            }
+        }
+    }
+
+    private void perform(String operation, ThreadLocalRandom random) throws Exception {
+        String equipment = EQUIPMENT[random.nextInt(EQUIPMENT.length)];
+        switch (operation) {
+            case "battery.use":
+                battery.useEnergy(1 + random.nextInt(20)).join();
+                break;
+            case "battery.charge":
+                battery.charge(1 + random.nextInt(20), equipment).join();
+                break;
+            case "search.date":
+                searcher.searchByDate(dates[random.nextInt(DAYS)]);
+                break;
+            case "search.equipment":
+                searcher.searchByEquipment(equipment);
+                break;
+            case "search.content":
+                searcher.searchContent("FAULT-E" + random.nextInt(7));
+                break;
+            case "energy.log":
+                exchange.logEnergyData(equipment, dates[random.nextInt(DAYS)] + " 10:00 " + random.nextInt(50));
+                break;
+            case "energy.retrieve":
+                exchange.retrieveEnergyData(equipment);
+                break;
+            case "log.create":
+                String name = "workload_" + createdCount.incrementAndGet() + ".log";
+                logManager.createLogFile(name);
+                createdFiles.add(name);
+                break;
+            case "log.delete":
+                String created = createdFiles.poll();
+                if (created != null) {
+                    logManager.deleteLogFile(created);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation: " + operation);
+        }
+    }
+
+    private void cleanUp() throws IOException {
+        for (String created : createdFiles) {
+            Files.deleteIfExists(LogLayout.of(logDirectory).resolve(created));
+        }
+        exchange.close();
+        if (index != null) {
+            index.close();
+        }
+        metadata.close();
+    }
+
+    private void report(long elapsedNanos, long backlog) {
+        double seconds = elapsedNanos / 1e9;
+        long total = 0;
+        List<String> delayed = new ArrayList<>();
+
+        System.out.printf("%n%-18s %9s %7s %10s | %-35s | %-35s%n", "", "", "", "",
+                "service time (us)", "response time from schedule (us)");
+        System.out.printf("%-18s %9s %7s %10s | %8s %8s %8s %8s | %8s %8s %8s %8s%n",
+                "Operation", "Count", "Errors", "ops/s", "p50", "p99", "p99.9", "max", "p50", "p99", "p99.9", "max");
+        for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+            LatencyHistogram.Snapshot service = entry.getValue().service.snapshot();
+            LatencyHistogram.Snapshot response = entry.getValue().response.snapshot();
+            if (service.getCount() == 0) {
+                continue;
+            }
+            total += service.getCount();
+            System.out.printf("%-18s %9d %7d %10.1f | %8.0f %8.0f %8.0f %8.0f | %8.0f %8.0f %8.0f %8.0f%n",
+                    entry.getKey(), service.getCount(), entry.getValue().errors.sum(), service.getCount() / seconds,
+                    service.getPercentile(50) / 1e3, service.getPercentile(99) / 1e3,
+                    service.getPercentile(99.9) / 1e3, service.getMax() / 1e3,
+                    response.getPercentile(50) / 1e3, response.getPercentile(99) / 1e3,
+                    response.getPercentile(99.9) / 1e3, response.getMax() / 1e3);
+            long queueing = response.getPercentile(99) - service.getPercentile(99);
+            if (rate > 0 && service.getCount() >= MIN_FLAGGED_COUNT && queueing > MIN_FLAGGED_QUEUEING_NANOS
+                    && response.getPercentile(99) > OMISSION_RATIO * service.getPercentile(99)) {
+                delayed.add(entry.getKey());
+            }
+            if (entry.getValue().lastError != null) {
+                System.out.println("    last error: " + entry.getValue().lastError);
+            }
+        }
+        System.out.printf("%nTotal: %d operations in %.1f s, %.1f ops/s%s%n", total, seconds, total / seconds,
+                rate > 0 ? String.format(" (%.1f requested)", rate) : "");
+
+        if (rate <= 0) {
+            System.out.println("WARNING: closed-loop run. Each thread waits for its previous operation, so slow operations "
+                    + "delay the requests behind them without being measured (coordinated omission). "
+                    + "Use --rate for open-loop response times.");
+        } else if (!delayed.isEmpty() || backlog > concurrency) {
+            System.out.println("WARNING: coordinated omission. "
+                    + (delayed.isEmpty() ? "" : "p99 response time of " + delayed + " is more than " + OMISSION_RATIO + "x the service time. ")
+                    + (backlog > concurrency ? backlog + " operations were still queued when the time was up. " : "")
+                    + "The system did not keep up with " + rate + " ops/s; a closed-loop test would have hidden this queueing. "
+                    + "Lower --rate or raise --concurrency to find the sustainable throughput.");
+        }
+    }
+
+    private static class Stats {
+        private final LatencyHistogram service = new LatencyHistogram();
+        private final LatencyHistogram response = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+        private volatile Exception lastError;
+    }
+}
@@ -5,4 +5,7 @@
  * 
  */
 module HA_Concurrency {
-}
\ No newline at end of file
+    requires java.management;
+
+    exports com.fh.concurrency;
+}